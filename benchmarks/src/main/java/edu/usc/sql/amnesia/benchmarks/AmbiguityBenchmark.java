@@ -0,0 +1,92 @@
+package edu.usc.sql.amnesia.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.usc.sql.amnesia.lexer.GenericLexer;
+import edu.usc.sql.amnesia.lexer.LexedQuery;
+import edu.usc.sql.amnesia.lexer.SQLLexerException;
+import edu.usc.sql.models.HotspotModel;
+import edu.usc.sql.models.TokenNFA;
+import edu.usc.sql.models.Workload;
+
+/**
+ * Worst case of matching: queries against a model with two paths per
+ * condition, see Workload.ambiguous(). The times of all three matchers
+ * should grow linearly with the number of conditions; a matcher that
+ * follows paths one at a time doubles with each condition.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AmbiguityBenchmark {
+    private static final int QUERIES = 16;
+
+    @Param({"8", "16", "32", "64"})
+    public int conditions;
+
+    @Param({"false", "true"})
+    public boolean attack;
+
+    private HotspotModel model;
+    private TokenNFA nfa;
+    private String[] queries;
+    private LexedQuery[] lexed;
+    private int next;
+    private GenericLexer lexer;
+
+    @Setup
+    public void setup() throws SQLLexerException {
+        model = new HotspotModel(Workload.ambiguous(conditions));
+        model.getTokenAutomaton();
+        //the model is small enough for a DFA, the NFA is measured directly
+        nfa = TokenNFA.compile(model);
+        Random random = new Random(42);
+        lexer = new GenericLexer();
+        queries = new String[QUERIES];
+        lexed = new LexedQuery[QUERIES];
+        for (int i=0; i<QUERIES; i++) {
+            queries[i] = Workload.ambiguousQuery(conditions, attack, random);
+            lexed[i] = new LexedQuery();
+            lexer.lexQuery(queries[i], lexed[i]);
+            if (model.accepts(lexed[i]) == attack || nfa.run(lexed[i]) == attack) {
+                throw new IllegalStateException("Unexpected verdict for " + queries[i]);
+            }
+        }
+    }
+
+    private int nextIndex() {
+        next = (next+1) & (QUERIES-1);
+        return next;
+    }
+
+    @Benchmark
+    public boolean dfa() {
+        return model.accepts(lexed[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean nfa() {
+        return nfa.run(lexed[nextIndex()]);
+    }
+
+    @Benchmark
+    public int analyzeWithDiagnostics() throws SQLLexerException {
+        return model.analyze(queries[nextIndex()], lexer).getLongestMatchQuery().size();
+    }
+}
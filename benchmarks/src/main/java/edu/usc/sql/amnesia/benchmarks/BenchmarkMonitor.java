@@ -0,0 +1,19 @@
+package edu.usc.sql.amnesia.benchmarks;
+
+import edu.usc.sql.amnesia.monitors.Monitor;
+
+/**
+ * Gives the benchmarks access to the model directory and the model cache
+ * of the monitors.
+ */
+public abstract class BenchmarkMonitor extends Monitor {
+
+    public static void setAutDir(String dir) {
+        DIR_AUT = dir;
+        autCache.clear();
+    }
+
+    public static void clearModels() {
+        autCache.clear();
+    }
+}
@@ -0,0 +1,83 @@
+package edu.usc.sql.amnesia.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.usc.sql.amnesia.lexer.GenericLexer;
+import edu.usc.sql.amnesia.lexer.LexedQuery;
+import edu.usc.sql.amnesia.lexer.SQLLexerException;
+import edu.usc.sql.models.QueryModel;
+import edu.usc.sql.models.Workload;
+
+/**
+ * Lexing of queries, into a token list, into a reused LexedQuery and into
+ * a QueryModel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+    private static final int QUERIES = 64;
+
+    @Param({"1", "8", "32"})
+    public int literals;
+
+    @Param({"8", "64", "1024"})
+    public int literalLength;
+
+    @Param({"false", "true"})
+    public boolean attack;
+
+    private String[] queries;
+    private int next;
+    private GenericLexer lexer;
+    private LexedQuery tokens;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        queries = new String[QUERIES];
+        for (int i=0; i<QUERIES; i++) {
+            queries[i] = Workload.query(literals, literalLength, 0, attack, random);
+        }
+        lexer = new GenericLexer();
+        tokens = new LexedQuery();
+    }
+
+    private String nextQuery() {
+        next = (next+1) & (QUERIES-1);
+        return queries[next];
+    }
+
+    @Benchmark
+    public List lexToList() throws SQLLexerException {
+        return lexer.lexQuery(nextQuery());
+    }
+
+    @Benchmark
+    public LexedQuery lexToArrays() throws SQLLexerException {
+        lexer.lexQuery(nextQuery(), tokens);
+        return tokens;
+    }
+
+    @Benchmark
+    public QueryModel queryModel() throws SQLLexerException {
+        return new QueryModel(nextQuery(), lexer);
+    }
+}
@@ -0,0 +1,105 @@
+package edu.usc.sql.amnesia.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.usc.sql.amnesia.lexer.GenericLexer;
+import edu.usc.sql.amnesia.lexer.LexedQuery;
+import edu.usc.sql.amnesia.lexer.SQLLexerException;
+import edu.usc.sql.models.HotspotModel;
+import edu.usc.sql.models.QueryAnalysis;
+import edu.usc.sql.models.Workload;
+
+/**
+ * Matching of queries against a hotspot model: lexing included, on
+ * already lexed tokens, lexed and matched in one pass, and the diagnostic
+ * analysis.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchBenchmark {
+    private static final int QUERIES = 64;
+
+    @Param({"1", "8", "32"})
+    public int literals;
+
+    @Param({"8", "256"})
+    public int literalLength;
+
+    @Param({"1", "16"})
+    public int shapes;
+
+    @Param({"false", "true"})
+    public boolean attack;
+
+    private HotspotModel model;
+    private String[] queries;
+    private LexedQuery[] lexed;
+    private int next;
+    private GenericLexer lexer;
+
+    @Setup
+    public void setup() throws SQLLexerException {
+        model = new HotspotModel(Workload.model(literals, shapes));
+        model.getTokenAutomaton();
+        Random random = new Random(42);
+        lexer = new GenericLexer();
+        queries = new String[QUERIES];
+        lexed = new LexedQuery[QUERIES];
+        for (int i=0; i<QUERIES; i++) {
+            queries[i] = Workload.query(literals, literalLength, random.nextInt(shapes), attack, random);
+            lexed[i] = new LexedQuery();
+            lexer.lexQuery(queries[i], lexed[i]);
+            if (model.accepts(lexed[i]) == attack) {
+                throw new IllegalStateException("Unexpected verdict for " + queries[i]);
+            }
+        }
+    }
+
+    private int nextIndex() {
+        next = (next+1) & (QUERIES-1);
+        return next;
+    }
+
+    @Benchmark
+    public boolean acceptsString() throws SQLLexerException {
+        return model.accepts(queries[nextIndex()], lexer);
+    }
+
+    @Benchmark
+    public boolean acceptsLexed() {
+        return model.accepts(lexed[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean matchesStreaming() throws SQLLexerException {
+        return model.matches(queries[nextIndex()], lexer);
+    }
+
+    @Benchmark
+    public QueryAnalysis analyze() throws SQLLexerException {
+        return model.analyze(queries[nextIndex()], lexer);
+    }
+
+    @Benchmark
+    public int analyzeWithDiagnostics() throws SQLLexerException {
+        QueryAnalysis analysis = model.analyze(queries[nextIndex()], lexer);
+        return analysis.getLongestMatchQuery().size();
+    }
+}
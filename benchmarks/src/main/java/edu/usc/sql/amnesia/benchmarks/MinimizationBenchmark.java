@@ -0,0 +1,65 @@
+package edu.usc.sql.amnesia.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.brics.automaton.Automaton;
+import edu.usc.sql.models.Workload;
+
+/**
+ * Minimization of the character automaton of a hotspot, as the string
+ * analysis builds it, with each of the algorithms of Automaton. Huffman's
+ * algorithm needs quadratic memory and runs out of it on larger models than
+ * these.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class MinimizationBenchmark {
+
+    @Param({"huffman", "brzozowski", "hopcroft", "valmari"})
+    public String algorithm;
+
+    @Param({"8"})
+    public int literals;
+
+    @Param({"1", "4", "16"})
+    public int shapes;
+
+    private Automaton automaton;
+
+    @Setup
+    public void setup() {
+        automaton = Workload.model(literals, shapes);
+        if (algorithm.equals("huffman")) {
+            Automaton.setMinimization(Automaton.MINIMIZE_HUFFMAN);
+        } else if (algorithm.equals("brzozowski")) {
+            Automaton.setMinimization(Automaton.MINIMIZE_BRZOZOWSKI);
+        } else if (algorithm.equals("hopcroft")) {
+            Automaton.setMinimization(Automaton.MINIMIZE_HOPCROFT);
+        } else {
+            Automaton.setMinimization(Automaton.MINIMIZE_VALMARI);
+        }
+    }
+
+    @Benchmark
+    public Automaton minimize() {
+        Automaton a = (Automaton)automaton.clone();
+        a.minimize();
+        return a;
+    }
+}
@@ -0,0 +1,58 @@
+package edu.usc.sql.amnesia.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.brics.automaton.Automaton;
+import edu.usc.sql.models.HotspotModel;
+import edu.usc.sql.models.TokenAutomaton;
+import edu.usc.sql.models.Workload;
+
+/**
+ * Static side: conversion of character automata to hotspot models and
+ * compilation of the token automaton.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBuildBenchmark {
+
+    @Param({"1", "8", "32"})
+    public int literals;
+
+    @Param({"1", "16", "64"})
+    public int shapes;
+
+    private Automaton automaton;
+    private HotspotModel model;
+
+    @Setup
+    public void setup() {
+        automaton = Workload.model(literals, shapes);
+        model = new HotspotModel(automaton);
+    }
+
+    @Benchmark
+    public HotspotModel convert() {
+        return new HotspotModel(automaton);
+    }
+
+    @Benchmark
+    public TokenAutomaton compile() {
+        return TokenAutomaton.compile(model);
+    }
+}
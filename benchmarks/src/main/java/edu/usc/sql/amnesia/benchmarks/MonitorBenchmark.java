@@ -0,0 +1,131 @@
+package edu.usc.sql.amnesia.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.usc.sql.amnesia.exceptions.SQLIAException;
+import edu.usc.sql.amnesia.monitors.Monitor;
+import edu.usc.sql.amnesia.monitors.NormalMonitor;
+import edu.usc.sql.amnesia.util.AutomataName;
+import edu.usc.sql.models.HotspotModel;
+import edu.usc.sql.models.HotspotModelIO;
+import edu.usc.sql.models.Workload;
+
+/**
+ * End to end checks through NormalMonitor.report, and loading of models
+ * from .aut files in both formats.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorBenchmark {
+    private static final int QUERIES = 64;
+
+    @Param({"1", "8", "32"})
+    public int literals;
+
+    @Param({"1", "16"})
+    public int shapes;
+
+    @Param({"false", "true"})
+    public boolean attack;
+
+    @Param({"binary", "serialized"})
+    public String format;
+
+    private File dir;
+    private String id;
+    private String[] queries;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = File.createTempFile("amnesia-bench", "");
+        dir.delete();
+        dir.mkdir();
+        AutomataName name = new AutomataName("bench", "Bench" + literals + "x" + shapes, 1);
+        id = name.getAutomataID();
+        HotspotModel model = new HotspotModel(Workload.model(literals, shapes));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(dir, name.getAutomataRegularPath())));
+        try {
+            if (format.equals("binary")) {
+                HotspotModelIO.write(model, out);
+            } else {
+                ObjectOutputStream oos = new ObjectOutputStream(out);
+                oos.writeObject(model);
+                oos.flush();
+            }
+        } finally {
+            out.close();
+        }
+        BenchmarkMonitor.setAutDir(dir.getAbsolutePath());
+
+        Random random = new Random(42);
+        queries = new String[QUERIES];
+        for (int i=0; i<QUERIES; i++) {
+            queries[i] = Workload.query(literals, 16, random.nextInt(shapes), attack, random);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkMonitor.clearModels();
+        File[] files = dir.listFiles();
+        for (int i=0; files != null && i<files.length; i++) {
+            files[i].delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public boolean report(Cursor cursor) throws Exception {
+        cursor.next = (cursor.next+1) & (QUERIES-1);
+        try {
+            NormalMonitor.report(queries[cursor.next], id);
+            return true;
+        } catch (SQLIAException sqlia) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public HotspotModel loadAut() {
+        BenchmarkMonitor.clearModels();
+        return Monitor.getAut(id);
+    }
+
+    @Benchmark
+    public HotspotModel loadAndCompileAut() {
+        BenchmarkMonitor.clearModels();
+        HotspotModel model = Monitor.getAut(id);
+        model.getTokenAutomaton();
+        return model;
+    }
+}
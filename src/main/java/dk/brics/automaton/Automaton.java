@@ -74,6 +74,15 @@ public class Automaton implements Serializable
      */
     public static final int MINIMIZE_HOPCROFT = 2;
 
+    /**
+     * Minimize using Valmari and Lehtinen's O(m log n) partition refinement,
+     * where m is the number of transitions split at the start points.
+     * This algorithm only uses arrays of ints, unlike the others it needs no
+     * quadratic tables or per-state lists, which suits large automata.
+     * @see #setMinimization(int)
+     */
+    public static final int MINIMIZE_VALMARI = 3;
+
     /** Selects minimization algorithm (default: <code>MINIMIZE_HOPCROFT</code>). */
     static int minimization = MINIMIZE_HOPCROFT;
 
@@ -998,56 +1007,116 @@ public class Automaton implements Serializable
 	determinize(initialset);
     }
 
-    /** Determinizes this automaton using the given set of initial states. */
+    /** 
+     * Determinizes this automaton using the given set of initial states. 
+     * The states are numbered and their transitions copied to arrays. A subset of states is
+     * a sorted array of numbers, interned in an open addressing table. The transitions of
+     * a subset are found by sweeping the interval start and end points of its members.
+     */
     private void determinize(Set initialset)
     {
-	char[] points = getStartPoints();
+	// number the states reachable from the initial ones
+	Map numbers = new HashMap();
+	ArrayList states = new ArrayList();
+	Iterator i = initialset.iterator();
+	while (i.hasNext()) {
+	    State q = (State) i.next();
+	    if (!numbers.containsKey(q)) {
+		numbers.put(q, new Integer(states.size()));
+		states.add(q);
+	    }
+	}
+	int numtransitions = 0;
+	for (int n = 0; n<states.size(); n++) {
+	    Iterator j = ((State) states.get(n)).transitions.iterator();
+	    while (j.hasNext()) {
+		State p = ((Transition) j.next()).to;
+		numtransitions++;
+		if (!numbers.containsKey(p)) {
+		    numbers.put(p, new Integer(states.size()));
+		    states.add(p);
+		}
+	    }
+	}
+	int size = states.size();
+	boolean[] accept = new boolean[size];
+	int[] offsets = new int[size+1];
+	char[] min = new char[numtransitions];
+	char[] max = new char[numtransitions];
+	int[] dest = new int[numtransitions];
+	int k = 0;
+	for (int n = 0; n<size; n++) {
+	    State q = (State) states.get(n);
+	    accept[n] = q.accept;
+	    Iterator j = q.transitions.iterator();
+	    while (j.hasNext()) {
+		Transition t = (Transition) j.next();
+		min[k] = t.min;
+		max[k] = t.max;
+		dest[k++] = ((Integer) numbers.get(t.to)).intValue();
+	    }
+	    offsets[n+1] = k;
+	}
+	states = null;
+	numbers = null;
 	// subset construction
-	Map sets = new HashMap();
-	LinkedList worklist = new LinkedList();
-	Map newstate = new HashMap();
-	sets.put(initialset, initialset);
-	worklist.add(initialset);
-	initial = new State();
-	newstate.put(initialset, initial);
-	while (worklist.size()>0) {
-	    Set s = (Set) worklist.removeFirst();
-	    State r = (State) newstate.get(s);
-	    Iterator i = s.iterator();
-	    while (i.hasNext()) {
-		State q = (State) i.next();
-		if (q.accept) {
+	SubsetTable subsets = new SubsetTable();
+	int[] members = new int[size];
+	// the initial states got the first numbers
+	for (int n = 0; n<initialset.size(); n++)
+	    members[n] = n;
+	subsets.intern(members, initialset.size());
+	long[] events = new long[16];
+	int[] count = new int[size];
+	int[] active = new int[size];
+	int[] position = new int[size];
+	for (int n = 0; n<subsets.size; n++) {
+	    int[] s = subsets.sets[n];
+	    State r = subsets.states[n];
+	    // events: (point<<33 | state<<1 | 1) where an interval to state starts, 0 where it ends
+	    int ne = 0;
+	    for (int m = 0; m<s.length; m++) {
+		int q = s[m];
+		if (accept[q])
 		    r.accept = true;
-		    break;
+		if (ne+2*(offsets[q+1]-offsets[q])>events.length)
+		    events = Arrays.copyOf(events, Math.max(events.length*2, ne+2*(offsets[q+1]-offsets[q])));
+		for (int t = offsets[q]; t<offsets[q+1]; t++) {
+		    events[ne++] = ((long) min[t]<<33) | ((long) dest[t]<<1) | 1;
+		    if (max[t]<Character.MAX_VALUE)
+			events[ne++] = ((long) (max[t]+1)<<33) | ((long) dest[t]<<1);
 		}
 	    }
-	    for (int n = 0; n<points.length; n++) {
-		Set p = new HashSet();
-		Iterator j = s.iterator();
-		while (j.hasNext()) {
-		    State q = (State) j.next();
-		    Iterator k = q.transitions.iterator();
-		    while (k.hasNext()) {
-			Transition t = (Transition) k.next();
-			if (t.min<=points[n] && points[n]<=t.max) 
-			    p.add(t.to);
+	    Arrays.sort(events, 0, ne);
+	    int na = 0;
+	    for (int e = 0; e<ne;) {
+		int point = (int) (events[e]>>>33);
+		for (; e<ne && (int) (events[e]>>>33)==point; e++) {
+		    int q = (int) (events[e]>>>1);
+		    if ((events[e] & 1)!=0) {
+			if (count[q]++==0) {
+			    position[q] = na;
+			    active[na++] = q;
+			}
+		    } else if (--count[q]==0) {
+			int last = active[--na];
+			active[position[q]] = last;
+			position[last] = position[q];
 		    }
 		}
-		if (!sets.containsKey(p)) {
-		    sets.put(p, p);
-		    worklist.add(p);
-		    newstate.put(p, new State());
-		}
-		State q = (State) newstate.get(p);
-		char min = points[n];
-		char max;
-		if (n+1<points.length)
-		    max = (char) (points[n+1]-1);
-		else
-		    max = Character.MAX_VALUE;
-		r.transitions.add(new Transition(min, max, q));
+		if (na==0)
+		    continue;
+		int next = e<ne ? (int) (events[e]>>>33) : Character.MAX_VALUE+1;
+		System.arraycopy(active, 0, members, 0, na);
+		Arrays.sort(members, 0, na);
+		State q = subsets.intern(members, na);
+		r.transitions.add(new Transition((char) point, (char) (next-1), q));
 	    }
+	    // intervals up to the last char have no end event
+	    for (int m = 0; m<na; m++)
+		count[active[m]] = 0;
 	}
+	initial = subsets.states[0];
 	deterministic = true;
 	removeDeadTransitions();
     }
@@ -1067,6 +1136,9 @@ public class Automaton implements Serializable
 	    case MINIMIZE_BRZOZOWSKI:
 		minimizeBrzozowski();
 		break;
+	    case MINIMIZE_VALMARI:
+		minimizeValmari();
+		break;
 	    default:
 		minimizeHopcroft();
 	    }
@@ -1411,6 +1483,169 @@ public class Automaton implements Serializable
 	removeDeadTransitions();
     }
 
+    /** 
+     * Minimize using Valmari and Lehtinen's algorithm. 
+     * The transitions are split at the start points, the index of the interval being the label.
+     * Blocks of states and cords of transitions with the same label are refined in turn,
+     * after the states that are unreachable or dead have been discarded.
+     */
+    private void minimizeValmari()
+    {
+	determinize();
+	Set ss = getStates();
+	State[] states = new State[ss.size()];
+	Iterator i = ss.iterator();
+	int n = 0;
+	while (i.hasNext()) {
+	    State q = (State) i.next();
+	    states[n] = q;
+	    q.number = n++;
+	}
+	char[] sigma = getStartPoints();
+	// labeled transitions
+	int m = 0;
+	for (int q = 0; q<n; q++) {
+	    Iterator j = states[q].transitions.iterator();
+	    while (j.hasNext()) {
+		Transition t = (Transition) j.next();
+		m += findIndex(t.max, sigma) - findIndex(t.min, sigma) + 1;
+	    }
+	}
+	int[] tail = new int[m];
+	int[] label = new int[m];
+	int[] head = new int[m];
+	m = 0;
+	for (int q = 0; q<n; q++) {
+	    Iterator j = states[q].transitions.iterator();
+	    while (j.hasNext()) {
+		Transition t = (Transition) j.next();
+		for (int a = findIndex(t.min, sigma); a<sigma.length && sigma[a]<=t.max; a++) {
+		    tail[m] = q;
+		    label[m] = a;
+		    head[m++] = t.to.number;
+		}
+	    }
+	}
+	// discard unreachable states, then dead states, the accept states being placed first
+	Partition blocks = new Partition(n);
+	int[] adjacent = new int[m];
+	int[] offsets = new int[n+1];
+	blocks.reach(initial.number);
+	m = discardUnreached(blocks, tail, head, label, m, adjacent, offsets);
+	for (int q = 0; q<n; q++)
+	    if (states[q].accept && blocks.location[q]<blocks.past[0])
+		blocks.reach(q);
+	int numaccept = blocks.reached;
+	m = discardUnreached(blocks, head, tail, label, m, adjacent, offsets);
+	if (numaccept==0) {
+	    initial = new State();
+	    return;
+	}
+	int numlive = blocks.past[0];
+	// initial blocks: accept and reject states, initial cords: transitions by label
+	blocks.marked[0] = numaccept;
+	blocks.touched[blocks.numtouched++] = 0;
+	blocks.split();
+	Partition cords = new Partition(m);
+	int[] end = new int[sigma.length+1];
+	for (int t = 0; t<m; t++)
+	    end[label[t]+1]++;
+	for (int a = 0; a<sigma.length; a++)
+	    end[a+1] += end[a];
+	for (int t = 0; t<m; t++) {
+	    int k = end[label[t]]++;
+	    cords.elements[k] = t;
+	    cords.location[t] = k;
+	}
+	cords.sets = 0;
+	for (int a = 0; a<sigma.length; a++) {
+	    int begin = a==0 ? 0 : end[a-1];
+	    if (begin<end[a]) {
+		cords.first[cords.sets] = begin;
+		cords.past[cords.sets] = end[a];
+		for (int k = begin; k<end[a]; k++)
+		    cords.set[cords.elements[k]] = cords.sets;
+		cords.sets++;
+	    }
+	}
+	// split blocks by the tails of each cord, and cords by the heads in each new block
+	makeAdjacent(head, m, n, adjacent, offsets);
+	int b = 1;
+	for (int c = 0; c<cords.sets; c++) {
+	    for (int k = cords.first[c]; k<cords.past[c]; k++)
+		blocks.mark(tail[cords.elements[k]]);
+	    blocks.split();
+	    for (; b<blocks.sets; b++) {
+		for (int k = blocks.first[b]; k<blocks.past[b]; k++) {
+		    int q = blocks.elements[k];
+		    for (int j = offsets[q]; j<offsets[q+1]; j++)
+			cords.mark(adjacent[j]);
+		}
+		cords.split();
+	    }
+	}
+	// make a new state for each block, with the transitions of its first state
+	State[] newstates = new State[blocks.sets];
+	for (int n1 = 0; n1<newstates.length; n1++) {
+	    newstates[n1] = new State();
+	    newstates[n1].accept = blocks.first[n1]<numaccept;
+	}
+	for (int n1 = 0; n1<newstates.length; n1++) {
+	    State s = newstates[n1];
+	    Iterator j = states[blocks.elements[blocks.first[n1]]].transitions.iterator();
+	    while (j.hasNext()) {
+		Transition t = (Transition) j.next();
+		if (blocks.location[t.to.number]<numlive)
+		    s.transitions.add(new Transition(t.min, t.max, newstates[blocks.set[t.to.number]]));
+	    }
+	}
+	initial = newstates[blocks.set[initial.number]];
+	reduce();
+    }
+
+    /** 
+     * Lists the transitions by the state given by <code>k</code>, those of state <code>q</code> 
+     * being <code>adjacent[offsets[q]]</code> to <code>adjacent[offsets[q+1]-1]</code>. 
+     * (Used for <code>minimizeValmari()</code>) 
+     */
+    private static void makeAdjacent(int[] k, int m, int n, int[] adjacent, int[] offsets)
+    {
+	Arrays.fill(offsets, 0);
+	for (int t = 0; t<m; t++)
+	    offsets[k[t]]++;
+	for (int q = 0; q<n; q++)
+	    offsets[q+1] += offsets[q];
+	for (int t = m; t-->0;)
+	    adjacent[--offsets[k[t]]] = t;
+    }
+
+    /** 
+     * Reaches the states that can be reached from the reached states of the first block 
+     * along transitions from <code>from</code> to <code>to</code>, then drops the other states 
+     * from the block and the transitions leaving them. Returns the number of transitions left. 
+     * (Used for <code>minimizeValmari()</code>) 
+     */
+    private static int discardUnreached(Partition blocks, int[] from, int[] to, int[] label, int m, 
+					int[] adjacent, int[] offsets)
+    {
+	makeAdjacent(from, m, blocks.elements.length, adjacent, offsets);
+	for (int k = 0; k<blocks.reached; k++) {
+	    int q = blocks.elements[k];
+	    for (int j = offsets[q]; j<offsets[q+1]; j++)
+		blocks.reach(to[adjacent[j]]);
+	}
+	int n = 0;
+	for (int t = 0; t<m; t++)
+	    if (blocks.location[from[t]]<blocks.reached) {
+		from[n] = from[t];
+		label[n] = label[t];
+		to[n++] = to[t];
+	    }
+	blocks.past[0] = blocks.reached;
+	blocks.reached = 0;
+	return n;
+    }
+
     /** 
      * Reverses the language of this (non-singleton) automaton 
      * while returning the set of new initial states. 
@@ -1817,8 +2052,8 @@ public class Automaton implements Serializable
     }
 
     /** Returns true if the given string is accepted by this automaton. 
-	As a side-effect, this automaton is determinized
-	if not already deterministic. 
+	If this automaton is not deterministic, the string is run through 
+	a {@link LazyAutomaton}, which only determinizes the part it visits. 
 	<p>
 	Complexity: linear in length of string (if automaton is already deterministic)
 	and in number of transitions. 
@@ -1828,7 +2063,8 @@ public class Automaton implements Serializable
     {
 	if (isSingleton())
 	    return s.equals(singleton);
-	determinize();
+	if (!deterministic)
+	    return new LazyAutomaton(this).run(s);
 	State p = initial;
 	for (int i = 0; i < s.length(); i++) {
 	    State q = p.step(s.charAt(i));
@@ -1994,16 +2230,132 @@ public class Automaton implements Serializable
 
     /** Returns true if the language of this automaton is a subset of the
 	language of the given automaton. 
-	Equivalent to <code>this.intersection(a.complement()).isEmpty()</code>. */
+	Same as <code>getSubsetCounterexample(a)==null</code>. */
     public boolean subsetOf(Automaton a)
+    {
+	return getSubsetCounterexample(a)==null;
+    }
+
+    /** 
+     * Returns a string accepted by this automaton but not by the given one, null if 
+     * the language of this automaton is a subset of the language of the given one. 
+     * <p>
+     * Pairs of a state of this automaton and the set of states the given automaton can 
+     * be in after the same string are searched depth-first, without determinizing or 
+     * complementing either automaton, and the search stops at the first pair whose state 
+     * accepts and whose set does not. A pair is not explored if a pair with the same 
+     * state and a subset of its set has been (antichain pruning): any string leading 
+     * from it to a counterexample would do so from the other pair as well. The sets 
+     * are the states of a {@link LazyAutomaton} of the given automaton. 
+     * Neither automaton is modified. 
+     */
+    public String getSubsetCounterexample(Automaton a)
     {
 	if (isSingleton()) {
 	    if (a.isSingleton())
-		return singleton.equals(a.singleton);
+		return singleton.equals(a.singleton) ? null : singleton;
 	    else
-		return a.run(singleton);
+		return a.run(singleton) ? null : singleton;
+	}
+	FrozenAutomaton f = new FrozenAutomaton(this);
+	LazyAutomaton l = new LazyAutomaton(a);
+	// antichain of the sets seen with each state, by number in l, -1 for the empty set
+	int[][] antichain = new int[f.size][];
+	int[] antichainsize = new int[f.size];
+	// search nodes: state, set, node it was reached from and char it was reached by
+	int[] nodestate = new int[16];
+	int[] nodeset = new int[16];
+	int[] nodeparent = new int[16];
+	char[] nodechar = new char[16];
+	int count = 1;
+	nodestate[0] = f.initial;
+	nodeset[0] = l.getInitialState();
+	nodeparent[0] = -1;
+	addToAntichain(l, antichain, antichainsize, f.initial, 0);
+	int[] pending = new int[16];
+	int npending = 0;
+	for (int n = 0; n!=-1; n = npending>0 ? pending[--npending] : -1) {
+	    int p = nodestate[n];
+	    int q = nodeset[n];
+	    if (f.accept[p] && (q==-1 || !l.accept[q])) {
+		StringBuffer b = new StringBuffer();
+		for (int m = n; nodeparent[m]!=-1; m = nodeparent[m])
+		    b.append(nodechar[m]);
+		return b.reverse().toString();
+	    }
+	    char[] points = null;
+	    if (q!=-1) {
+		l.expand(q);
+		points = l.points[q];
+	    }
+	    for (int k = f.offsets[p]; k<f.offsets[p+1]; k++) {
+		// one successor pair for each interval of q that overlaps the transition
+		int i = q==-1 ? 0 : findIndex(f.min[k], points);
+		do {
+		    int p1 = f.dest[k];
+		    int q1 = q==-1 ? -1 : l.targets[q][i];
+		    char c = q==-1 || points[i]<f.min[k] ? f.min[k] : points[i];
+		    i++;
+		    if (addToAntichain(l, antichain, antichainsize, p1, q1)) {
+			if (count==nodestate.length) {
+			    nodestate = Arrays.copyOf(nodestate, count*2);
+			    nodeset = Arrays.copyOf(nodeset, count*2);
+			    nodeparent = Arrays.copyOf(nodeparent, count*2);
+			    nodechar = Arrays.copyOf(nodechar, count*2);
+			}
+			if (npending==pending.length)
+			    pending = Arrays.copyOf(pending, npending*2);
+			nodestate[count] = p1;
+			nodeset[count] = q1;
+			nodeparent[count] = n;
+			nodechar[count] = c;
+			pending[npending++] = count++;
+		    }
+		} while (q!=-1 && i<points.length && points[i]<=f.max[k]);
+	    }
+	}
+	return null;
+    }
+
+    /** 
+     * Adds the set <code>q</code> to the antichain of state <code>p</code>, unless it contains a set 
+     * of the antichain. Returns false if not added. (Used for <code>getSubsetCounterexample()</code>) 
+     */
+    private static boolean addToAntichain(LazyAutomaton l, int[][] antichain, int[] antichainsize, int p, int q)
+    {
+	int[] sets = antichain[p];
+	int n = antichainsize[p];
+	int m = 0;
+	for (int i = 0; i<n; i++) {
+	    if (sets[i]==-1 || sets[i]==q || (q!=-1 && isSubset(l.sets[sets[i]], l.sets[q])))
+		return false;
+	    // sets that contain the new one are dropped
+	    if (q==-1 || !isSubset(l.sets[q], l.sets[sets[i]]))
+		sets[m++] = sets[i];
+	}
+	if (sets==null)
+	    sets = antichain[p] = new int[2];
+	else if (m==sets.length)
+	    sets = antichain[p] = Arrays.copyOf(sets, m*2);
+	sets[m++] = q;
+	antichainsize[p] = m;
+	return true;
+    }
+
+    /** Returns true if the sorted array <code>s1</code> is a subset of the sorted array <code>s2</code>. */
+    private static boolean isSubset(int[] s1, int[] s2)
+    {
+	if (s1.length>s2.length)
+	    return false;
+	int j = 0;
+	for (int i = 0; i<s1.length; i++) {
+	    while (j<s2.length && s2[j]<s1[i])
+		j++;
+	    if (j==s2.length || s2[j]!=s1[i])
+		return false;
+	    j++;
 	}
-	return intersection(a.complement()).isEmpty();
+	return true;
     }
 
     /** Returns true if the language of this automaton is equal to the
@@ -2275,3 +2627,147 @@ class StateListNode
     }
 }
 
+/** 
+ * Partition of the numbers from 0 to n-1 into sets that can be refined by marking elements 
+ * (used for <code>minimizeValmari()</code>). 
+ */
+class Partition
+{
+    int sets;
+    int[] elements; // the elements of each set are consecutive
+    int[] location; // index of each element in elements
+    int[] set; // set of each element
+    int[] first; // elements of set s are from first[s] to past[s]-1
+    int[] past;
+    int[] marked; // number of marked elements of each set, which come first
+    int[] touched; // sets with marked elements
+    int numtouched;
+    int reached; // number of elements moved to the front by reach()
+
+    Partition(int n)
+    {
+	elements = new int[n];
+	location = new int[n];
+	set = new int[n];
+	first = new int[n+1];
+	past = new int[n+1];
+	marked = new int[n+1];
+	touched = new int[n+1];
+	for (int i = 0; i<n; i++)
+	    elements[i] = location[i] = i;
+	if (n>0) {
+	    sets = 1;
+	    past[0] = n;
+	}
+    }
+
+    void mark(int e)
+    {
+	int s = set[e];
+	int i = location[e];
+	int j = first[s]+marked[s];
+	elements[i] = elements[j];
+	location[elements[i]] = i;
+	elements[j] = e;
+	location[e] = j;
+	if (marked[s]++==0)
+	    touched[numtouched++] = s;
+    }
+
+    /** Splits the marked elements off their sets, the smaller part becoming a new set. */
+    void split()
+    {
+	while (numtouched>0) {
+	    int s = touched[--numtouched];
+	    int j = first[s]+marked[s];
+	    if (j==past[s]) {
+		marked[s] = 0;
+		continue;
+	    }
+	    if (marked[s]<=past[s]-j) {
+		first[sets] = first[s];
+		past[sets] = first[s] = j;
+	    } else {
+		past[sets] = past[s];
+		first[sets] = past[s] = j;
+	    }
+	    for (int i = first[sets]; i<past[sets]; i++)
+		set[elements[i]] = sets;
+	    marked[s] = marked[sets++] = 0;
+	}
+    }
+
+    void reach(int e)
+    {
+	int i = location[e];
+	if (i>=reached) {
+	    elements[i] = elements[reached];
+	    location[elements[i]] = i;
+	    elements[reached] = e;
+	    location[e] = reached++;
+	}
+    }
+}
+
+/** 
+ * Set of subsets of states, given as sorted arrays of state numbers, 
+ * each with a new state (used for <code>determinize()</code>). 
+ */
+class SubsetTable
+{
+    int size;
+    int[][] sets = new int[16][];
+    State[] states = new State[16];
+    int[] hashes = new int[16];
+    int[] slots = new int[32]; // open addressing, subset number + 1, 0 if free
+
+    /** Returns the state of the given subset, adding it if it is new. */
+    State intern(int[] members, int n)
+    {
+	int hash = 0;
+	for (int i = 0; i<n; i++)
+	    hash = hash*31 + members[i];
+	hash ^= hash>>>16;
+	int mask = slots.length-1;
+	int i = hash & mask;
+	for (; slots[i]!=0; i = (i+1) & mask) {
+	    int s = slots[i]-1;
+	    if (hashes[s]==hash && equals(sets[s], members, n))
+		return states[s];
+	}
+	if (size==sets.length) {
+	    sets = Arrays.copyOf(sets, size*2);
+	    states = Arrays.copyOf(states, size*2);
+	    hashes = Arrays.copyOf(hashes, size*2);
+	}
+	sets[size] = Arrays.copyOf(members, n);
+	states[size] = new State();
+	hashes[size] = hash;
+	slots[i] = ++size;
+	if (2*size>slots.length)
+	    rehash();
+	return states[size-1];
+    }
+
+    private static boolean equals(int[] set, int[] members, int n)
+    {
+	if (set.length!=n)
+	    return false;
+	for (int i = 0; i<n; i++)
+	    if (set[i]!=members[i])
+		return false;
+	return true;
+    }
+
+    private void rehash()
+    {
+	slots = new int[slots.length*2];
+	int mask = slots.length-1;
+	for (int s = 0; s<size; s++) {
+	    int i = hashes[s] & mask;
+	    while (slots[i]!=0)
+		i = (i+1) & mask;
+	    slots[i] = s+1;
+	}
+    }
+}
@@ -0,0 +1,246 @@
+package dk.brics.automaton;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Immutable finite-state automaton in a compact representation.
+ * <p>
+ * States are numbered from 0 to <code>getNumberOfStates()-1</code>. The transitions
+ * of all states are kept in the parallel arrays <code>min</code>, <code>max</code>
+ * and <code>dest</code>, those of state <code>s</code> at the indices
+ * <code>offsets[s]</code> to <code>offsets[s+1]-1</code>, sorted by interval.
+ * This takes a fraction of the memory of {@link State} and {@link Transition}
+ * objects and their transition sets. It is used to keep automata that are
+ * stored rather than operated on, and as the input of {@link LazyAutomaton}
+ * and of {@link Automaton#getSubsetCounterexample}, which read the arrays directly.
+ * <p>
+ * Conversion from and to {@link Automaton} is linear in the size of the automaton.
+ */
+public class FrozenAutomaton implements Serializable
+{
+    static final long serialVersionUID = 50001;
+
+    int size;
+    boolean[] accept;
+    int initial;
+    int[] offsets;
+    char[] min;
+    char[] max;
+    int[] dest;
+    boolean deterministic;
+
+    /** Singleton string. Null if not applicable. */
+    String singleton;
+
+    private FrozenAutomaton() {}
+
+    /**
+     * Constructs a frozen copy of the given automaton.
+     * The initial state gets number 0, the others are numbered in breadth-first order.
+     * The extra data of the automaton is not copied.
+     * @param a an automaton
+     */
+    public FrozenAutomaton(Automaton a)
+    {
+	deterministic = a.deterministic;
+	if (a.isSingleton()) {
+	    singleton = a.singleton;
+	    deterministic = true;
+	    return;
+	}
+	Map numbers = new HashMap();
+	State[] states = new State[16];
+	numbers.put(a.initial, Integer.valueOf(0));
+	states[0] = a.initial;
+	int count = 1;
+	int transitions = 0;
+	for (int n = 0; n<count; n++) {
+	    Iterator i = states[n].transitions.iterator();
+	    while (i.hasNext()) {
+		Transition t = (Transition) i.next();
+		transitions++;
+		if (!numbers.containsKey(t.to)) {
+		    if (count==states.length)
+			states = Arrays.copyOf(states, count*2);
+		    numbers.put(t.to, Integer.valueOf(count));
+		    states[count++] = t.to;
+		}
+	    }
+	}
+	Builder b = new Builder(count, transitions);
+	long[] keys = new long[0];
+	for (int n = 0; n<count; n++) {
+	    State s = states[n];
+	    if (keys.length<s.transitions.size())
+		keys = new long[s.transitions.size()];
+	    int k = 0;
+	    Iterator i = s.transitions.iterator();
+	    while (i.hasNext()) {
+		Transition t = (Transition) i.next();
+		keys[k++] = key(t.min, t.max, ((Integer) numbers.get(t.to)).intValue());
+	    }
+	    b.addState(s.accept);
+	    b.addSortedTransitions(keys, k);
+	}
+	b.build(this, 0);
+    }
+
+    /** Returns new automaton with the same language, made of {@link State} and {@link Transition} objects. */
+    public Automaton toAutomaton()
+    {
+	if (singleton!=null)
+	    return Automaton.makeString(singleton);
+	Automaton a = new Automaton();
+	State[] states = new State[size];
+	for (int s = 0; s<size; s++) {
+	    states[s] = new State();
+	    states[s].accept = accept[s];
+	}
+	for (int s = 0; s<size; s++)
+	    for (int k = offsets[s]; k<offsets[s+1]; k++)
+		states[s].transitions.add(new Transition(min[k], max[k], states[dest[k]]));
+	a.initial = states[initial];
+	a.deterministic = deterministic;
+	return a;
+    }
+
+    /** Sort key of a transition, ordering by interval then destination. */
+    static long key(char min, char max, int dest)
+    {
+	return ((long) min<<48) | ((long) max<<32) | dest;
+    }
+
+    /** Returns this automaton with the singleton string expanded to states. */
+    FrozenAutomaton explicit()
+    {
+	if (singleton==null)
+	    return this;
+	int n = singleton.length();
+	Builder b = new Builder(n+1, n);
+	for (int s = 0; s<n; s++) {
+	    b.addState(false);
+	    b.addTransition(singleton.charAt(s), singleton.charAt(s), s+1);
+	}
+	b.addState(true);
+	FrozenAutomaton a = new FrozenAutomaton();
+	b.build(a, 0);
+	a.deterministic = true;
+	return a;
+    }
+
+    /** Returns number of states. */
+    public int getNumberOfStates()
+    {
+	if (singleton!=null)
+	    return singleton.length()+1;
+	return size;
+    }
+
+    /** Returns number of transitions. */
+    public int getNumberOfTransitions()
+    {
+	if (singleton!=null)
+	    return singleton.length();
+	return dest.length;
+    }
+
+    /** Returns true if this automaton is definitely deterministic. */
+    public boolean isDeterministic()
+    {
+	return deterministic;
+    }
+
+    /** Returns a string representation of this automaton. */
+    public String toString()
+    {
+	if (singleton!=null)
+	    return "singleton: " + singleton + "\n";
+	StringBuffer b = new StringBuffer();
+	b.append("initial state: ").append(initial).append("\n");
+	for (int s = 0; s<size; s++) {
+	    b.append("state ").append(s);
+	    if (accept[s])
+		b.append(" [accept]:\n");
+	    else
+		b.append(" [reject]:\n");
+	    for (int k = offsets[s]; k<offsets[s+1]; k++) {
+		b.append("  ");
+		Transition.appendCharString(min[k], b);
+		if (min[k]!=max[k]) {
+		    b.append("-");
+		    Transition.appendCharString(max[k], b);
+		}
+		b.append(" -> ").append(dest[k]).append("\n");
+	    }
+	}
+	return b.toString();
+    }
+
+    /** Collects the states and transitions of a new automaton, in state order. */
+    static class Builder
+    {
+	boolean[] accept;
+	int[] offsets;
+	char[] min;
+	char[] max;
+	int[] dest;
+	int states;
+	int transitions;
+
+	Builder(int numstates, int numtransitions)
+	{
+	    accept = new boolean[Math.max(numstates, 1)];
+	    offsets = new int[Math.max(numstates, 1)+1];
+	    min = new char[Math.max(numtransitions, 1)];
+	    max = new char[min.length];
+	    dest = new int[min.length];
+	}
+
+	void addState(boolean acc)
+	{
+	    if (states==accept.length) {
+		accept = Arrays.copyOf(accept, states*2);
+		offsets = Arrays.copyOf(offsets, states*2+1);
+	    }
+	    accept[states++] = acc;
+	    offsets[states] = transitions;
+	}
+
+	/** Adds a transition to the last added state. */
+	void addTransition(char lo, char hi, int to)
+	{
+	    if (transitions==dest.length) {
+		min = Arrays.copyOf(min, transitions*2);
+		max = Arrays.copyOf(max, transitions*2);
+		dest = Arrays.copyOf(dest, transitions*2);
+	    }
+	    min[transitions] = lo;
+	    max[transitions] = hi;
+	    dest[transitions++] = to;
+	    offsets[states] = transitions;
+	}
+
+	/** Adds the transitions given by keys made with {@link FrozenAutomaton#key}, sorting them first. */
+	void addSortedTransitions(long[] keys, int n)
+	{
+	    Arrays.sort(keys, 0, n);
+	    for (int i = 0; i<n; i++)
+		addTransition((char) (keys[i]>>>48), (char) ((keys[i]>>>32) & 0xffff), (int) keys[i]);
+	}
+
+	void build(FrozenAutomaton a, int init)
+	{
+	    a.size = states;
+	    a.accept = Arrays.copyOf(accept, states);
+	    a.offsets = Arrays.copyOf(offsets, states+1);
+	    a.min = Arrays.copyOf(min, transitions);
+	    a.max = Arrays.copyOf(max, transitions);
+	    a.dest = Arrays.copyOf(dest, transitions);
+	    a.initial = init;
+	}
+    }
+}
@@ -0,0 +1,236 @@
+package dk.brics.automaton;
+
+import java.util.Arrays;
+
+/**
+ * Deterministic view of an automaton, built on demand.
+ * <p>
+ * The states of the view are the sets of states of the automaton that runs can be in.
+ * A state and its transitions are only made when a run or a search first gets there,
+ * so the subset construction is only done for the part that is visited, which for
+ * automata with many states is often a tiny part of the whole.
+ * <p>
+ * States are numbered from 0, the initial state. The empty set of states is not a state,
+ * {@link #step(int,char)} returns -1 instead. When the number of states has reached
+ * the limit given at construction, the table is cleared before the next state is
+ * expanded by a step. The numbers of the states obtained before that step are then
+ * no longer valid, the one it returns is.
+ */
+public class LazyAutomaton
+{
+    FrozenAutomaton a;
+    int limit;
+
+    int size;
+    int[][] sets; // states of the automaton in each state, sorted
+    int[] hashes;
+    boolean[] accept;
+    char[][] points; // start points of the intervals of each state, null until expanded
+    int[][] targets; // state reached on each interval, -1 for the empty set
+    int[] slots; // open addressing table of the sets, state number + 1, 0 if free
+
+    // work arrays of expand()
+    long[] events = new long[16];
+    int[] count;
+    int[] active;
+    int[] position;
+    int[] members;
+
+    /**
+     * Constructs a new deterministic view of the given automaton, without limit on the
+     * number of states. The automaton is copied, later changes to it are not seen.
+     * @param a an automaton
+     */
+    public LazyAutomaton(Automaton a)
+    {
+	this(a, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructs a new deterministic view of the given automaton.
+     * @param a an automaton
+     * @param limit number of states after which the table is cleared
+     */
+    public LazyAutomaton(Automaton a, int limit)
+    {
+	this.a = new FrozenAutomaton(a).explicit();
+	this.limit = Math.max(limit, 1);
+	count = new int[this.a.size];
+	active = new int[this.a.size];
+	position = new int[this.a.size];
+	members = new int[this.a.size];
+	clear();
+    }
+
+    private void clear()
+    {
+	size = 0;
+	sets = new int[16][];
+	hashes = new int[16];
+	accept = new boolean[16];
+	points = new char[16][];
+	targets = new int[16][];
+	slots = new int[32];
+	intern(new int[] {a.initial}, 1);
+    }
+
+    /** Returns initial state. */
+    public int getInitialState()
+    {
+	return 0;
+    }
+
+    /** Returns acceptance status for given state. */
+    public boolean isAccept(int state)
+    {
+	return accept[state];
+    }
+
+    /** Returns number of states made so far. */
+    public int getNumberOfStates()
+    {
+	return size;
+    }
+
+    /**
+     * Returns the state obtained by reading the given char from the given state,
+     * -1 if the automaton cannot read it.
+     */
+    public int step(int state, char c)
+    {
+	if (points[state]==null) {
+	    if (size>=limit) {
+		int[] s = sets[state];
+		clear();
+		state = intern(s, s.length);
+	    }
+	    expand(state);
+	}
+	return targets[state][Automaton.findIndex(c, points[state])];
+    }
+
+    /** Returns true if the given string is accepted by the automaton. */
+    public boolean run(String s)
+    {
+	int p = 0;
+	for (int i = 0; i<s.length(); i++) {
+	    p = step(p, s.charAt(i));
+	    if (p==-1)
+		return false;
+	}
+	return accept[p];
+    }
+
+    /** Returns the number of the given set of states, adding it if it is new. */
+    int intern(int[] subset, int n)
+    {
+	int hash = 0;
+	for (int i = 0; i<n; i++)
+	    hash = hash*31 + subset[i];
+	hash ^= hash>>>16;
+	int mask = slots.length-1;
+	int i = hash & mask;
+	for (; slots[i]!=0; i = (i+1) & mask) {
+	    int s = slots[i]-1;
+	    if (hashes[s]==hash && equals(sets[s], subset, n))
+		return s;
+	}
+	if (size==sets.length) {
+	    sets = Arrays.copyOf(sets, size*2);
+	    hashes = Arrays.copyOf(hashes, size*2);
+	    accept = Arrays.copyOf(accept, size*2);
+	    points = Arrays.copyOf(points, size*2);
+	    targets = Arrays.copyOf(targets, size*2);
+	}
+	sets[size] = Arrays.copyOf(subset, n);
+	hashes[size] = hash;
+	for (int j = 0; j<n; j++)
+	    if (a.accept[subset[j]])
+		accept[size] = true;
+	slots[i] = ++size;
+	if (2*size>slots.length) {
+	    slots = new int[slots.length*2];
+	    mask = slots.length-1;
+	    for (int s = 0; s<size; s++) {
+		int j = hashes[s] & mask;
+		while (slots[j]!=0)
+		    j = (j+1) & mask;
+		slots[j] = s+1;
+	    }
+	}
+	return size-1;
+    }
+
+    private static boolean equals(int[] set, int[] members, int n)
+    {
+	if (set.length!=n)
+	    return false;
+	for (int i = 0; i<n; i++)
+	    if (set[i]!=members[i])
+		return false;
+	return true;
+    }
+
+    /**
+     * Makes the transitions of the given state, if not made yet. They cover all chars,
+     * adjacent intervals lead to different states.
+     */
+    void expand(int state)
+    {
+	if (points[state]!=null)
+	    return;
+	int[] s = sets[state];
+	// events: (point<<33 | state<<1 | 1) where an interval to state starts, 0 where it ends
+	int ne = 0;
+	for (int m = 0; m<s.length; m++) {
+	    int q = s[m];
+	    int n = a.offsets[q+1]-a.offsets[q];
+	    if (ne+2*n>events.length)
+		events = Arrays.copyOf(events, Math.max(events.length*2, ne+2*n));
+	    for (int t = a.offsets[q]; t<a.offsets[q+1]; t++) {
+		events[ne++] = ((long) a.min[t]<<33) | ((long) a.dest[t]<<1) | 1;
+		if (a.max[t]<Character.MAX_VALUE)
+		    events[ne++] = ((long) (a.max[t]+1)<<33) | ((long) a.dest[t]<<1);
+	    }
+	}
+	Arrays.sort(events, 0, ne);
+	char[] p = new char[ne+1];
+	int[] d = new int[ne+1];
+	int np = 0;
+	int na = 0;
+	int point = Character.MIN_VALUE;
+	for (int e = 0;;) {
+	    for (; e<ne && (int) (events[e]>>>33)==point; e++) {
+		int q = (int) (events[e]>>>1);
+		if ((events[e] & 1)!=0) {
+		    if (count[q]++==0) {
+			position[q] = na;
+			active[na++] = q;
+		    }
+		} else if (--count[q]==0) {
+		    int last = active[--na];
+		    active[position[q]] = last;
+		    position[last] = position[q];
+		}
+	    }
+	    int target = -1;
+	    if (na>0) {
+		System.arraycopy(active, 0, members, 0, na);
+		Arrays.sort(members, 0, na);
+		target = intern(members, na);
+	    }
+	    if (np==0 || d[np-1]!=target) {
+		p[np] = (char) point;
+		d[np++] = target;
+	    }
+	    if (e==ne)
+		break;
+	    point = (int) (events[e]>>>33);
+	}
+	// intervals up to the last char have no end event
+	for (int m = 0; m<na; m++)
+	    count[active[m]] = 0;
+	points[state] = Arrays.copyOf(p, np);
+	targets[state] = Arrays.copyOf(d, np);
+    }
+}
@@ -186,40 +186,64 @@ public class RegExp
      *   a named identifier that does not occur in the automaton map
     */
     public Automaton toAutomaton(Map automata) throws IllegalArgumentException
+    {
+	return toAutomaton(automata, true);
+    }
+
+    /** 
+     * Constructs new <code>Automaton</code> from this <code>RegExp</code>. 
+     * If <code>minimize</code> is false, the automata of the subexpressions are 
+     * not minimized, which saves determinizing them when the automaton is only run 
+     * a few times, but the constructed automaton may be nondeterministic.
+     * @param automata a map from automaton identifiers to automata 
+     *   (of type <code>Automaton</code>).
+     * @param minimize if true, the constructed automaton is minimal and deterministic
+     * @exception IllegalArgumentException if this regular expression uses
+     *   a named identifier that does not occur in the automaton map
+    */
+    public Automaton toAutomaton(Map automata, boolean minimize) throws IllegalArgumentException
     {
 	Automaton a = null;
 	switch (kind) {
 	case RE_UNION:
-	    a = exp1.toAutomaton(automata).union(exp2.toAutomaton(automata));
-	    a.minimize();
+	    a = exp1.toAutomaton(automata, minimize).union(exp2.toAutomaton(automata, minimize));
+	    if (minimize)
+		a.minimize();
 	    break;
 	case RE_CONCATENATION:
-	    a = exp1.toAutomaton(automata).concatenate(exp2.toAutomaton(automata));
-	    a.minimize();
+	    a = exp1.toAutomaton(automata, minimize).concatenate(exp2.toAutomaton(automata, minimize));
+	    if (minimize)
+		a.minimize();
 	    break;
 	case RE_INTERSECTION:
-	    a = exp1.toAutomaton(automata).intersection(exp2.toAutomaton(automata));
-	    a.minimize();
+	    a = exp1.toAutomaton(automata, minimize).intersection(exp2.toAutomaton(automata, minimize));
+	    if (minimize)
+		a.minimize();
 	    break;
 	case RE_OPTIONAL:
-	    a = exp1.toAutomaton(automata).optional();
-	    a.minimize();
+	    a = exp1.toAutomaton(automata, minimize).optional();
+	    if (minimize)
+		a.minimize();
 	    break;
 	case RE_REPEAT:
-	    a = exp1.toAutomaton(automata).repeat();
-	    a.minimize();
+	    a = exp1.toAutomaton(automata, minimize).repeat();
+	    if (minimize)
+		a.minimize();
 	    break;
 	case RE_REPEAT_MIN:
-	    a = exp1.toAutomaton(automata).repeat(min);
-	    a.minimize();
+	    a = exp1.toAutomaton(automata, minimize).repeat(min);
+	    if (minimize)
+		a.minimize();
 	    break;
 	case RE_REPEAT_MINMAX:
-	    a = exp1.toAutomaton(automata).repeat(min, max);
-	    a.minimize();
+	    a = exp1.toAutomaton(automata, minimize).repeat(min, max);
+	    if (minimize)
+		a.minimize();
 	    break;
 	case RE_COMPLEMENT:
-	    a = exp1.toAutomaton(automata).complement();
-	    a.minimize();
+	    a = exp1.toAutomaton(automata, minimize).complement();
+	    if (minimize)
+		a.minimize();
 	    break;
 	case RE_CHAR:
 	    a = Automaton.makeChar(c);
@@ -11,6 +11,7 @@ import java.io.InputStream;
 import java.io.InvalidClassException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.OptionalDataException;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -32,19 +33,61 @@ public class RunAutomaton implements Serializable
     int[] transitions; // delta(state,c) = transitions[state*points.length + getCharClass(c)]
 
     char[] points; // char interval start points
-    int[] classmap; // map from char number to class class
+    transient int[] classmap; // map from char number to class, up to the last start point
 
-    /** Sets alphabet table for optimal run performance. */
+    /** Serialized form, compatible with the one that stored the classmap as a full table. */
+    private static final ObjectStreamField[] serialPersistentFields = {
+	new ObjectStreamField("size", Integer.TYPE),
+	new ObjectStreamField("accept", boolean[].class),
+	new ObjectStreamField("initial", Integer.TYPE),
+	new ObjectStreamField("transitions", int[].class),
+	new ObjectStreamField("points", char[].class),
+	new ObjectStreamField("classmap", int[].class),
+	new ObjectStreamField("tableized", Boolean.TYPE)
+    };
+
+    /** 
+     * Sets alphabet table for optimal run performance. 
+     * All chars from the last start point on are in the last class, the table
+     * stops there, so that it is small for automata over a small alphabet.
+     */
     void setAlphabet()
     {
-	classmap = new int[Character.MAX_VALUE - Character.MIN_VALUE + 1];
+	classmap = new int[points[points.length-1] - Character.MIN_VALUE];
 	int i = 0;
-	for (int j = 0; j<=Character.MAX_VALUE - Character.MIN_VALUE; j++) {
+	for (int j = 0; j<classmap.length; j++) {
 	    if (i+1<points.length && j==points[i+1]) 
 		i++;
 	    classmap[j] = i;
 	}
     }
+
+    private void writeObject(ObjectOutputStream s)
+	throws IOException
+    {
+	ObjectOutputStream.PutField f = s.putFields();
+	f.put("size", size);
+	f.put("accept", accept);
+	f.put("initial", initial);
+	f.put("transitions", transitions);
+	f.put("points", points);
+	f.put("classmap", null);
+	f.put("tableized", classmap!=null);
+	s.writeFields();
+    }
+
+    private void readObject(ObjectInputStream s)
+	throws IOException, ClassNotFoundException
+    {
+	ObjectInputStream.GetField f = s.readFields();
+	size = f.get("size", 0);
+	accept = (boolean[]) f.get("accept", null);
+	initial = f.get("initial", 0);
+	transitions = (int[]) f.get("transitions", null);
+	points = (char[]) f.get("points", null);
+	if (f.get("classmap", null)!=null || f.get("tableized", false))
+	    setAlphabet();
+    }
     
     /** Returns a string representation of this automaton. */
     public String toString()
@@ -212,8 +255,10 @@ public class RunAutomaton implements Serializable
     {
 	if (classmap==null)
 	    return transitions[state*points.length + getCharClass(c)];
+	else if (c<classmap.length)
+	    return transitions[state*points.length + classmap[c]];
 	else
-	    return transitions[state*points.length + classmap[c - Character.MIN_VALUE]];
+	    return transitions[state*points.length + points.length-1];
     }
 
     /** Returns true if the given string is accepted by this automaton. */
@@ -12,6 +12,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** 
  * <tt>Automaton</tt> state. 
@@ -27,13 +28,13 @@ public class State implements Serializable, Comparable
     int number;
 
     int id;
-    static int next_id;
+    static final AtomicInteger next_id = new AtomicInteger();
     
     /** Constructs new state. Initially, the new state is a reject state. */
     public State()
     {
 	resetTransitions();
-	id = next_id++;
+	id = next_id.getAndIncrement();
     }
 
     /** Resets transition set. */
@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -23,6 +24,7 @@ import soot.toolkits.graph.CompleteUnitGraph;
 import dk.brics.automaton.Automaton;
 import dk.brics.string.flow.Graph;
 import dk.brics.string.flow.Node;
+import dk.brics.string.flow.Use;
 import dk.brics.string.grammar.Grammar;
 import dk.brics.string.grammar.Nonterminal;
 import dk.brics.string.intermediate.AliasAnalysis;
@@ -30,6 +32,7 @@ import dk.brics.string.intermediate.FlowGraphConnector;
 import dk.brics.string.intermediate.LivenessAnalysis;
 import dk.brics.string.intermediate.Method;
 import dk.brics.string.intermediate.ReachingDefinitions;
+import dk.brics.string.intermediate.Statement;
 import dk.brics.string.intermediate.StringStatement;
 import dk.brics.string.intermediate.Translator;
 import dk.brics.string.java.JavaTranslator;
@@ -58,6 +61,9 @@ public class StringAnalysis implements IsExternallyVisible {
     private Map/*<ValueBox,String>*/ class_map;
     private Map/*<ValueBox,String>*/ method_map;
     private Map/*<ValueBox,Integer>*/ line_map;
+    private Map/*<ValueBox,Node>*/ node_map;
+    private Map/*<Node,Set<String>>*/ node_classes;
+    private Map/*<Node,Set<Node>>*/ node_defs;
     private int num_exps;
 
     //XXX: added by GJ
@@ -147,6 +153,28 @@ public class StringAnalysis implements IsExternallyVisible {
 	debug("Simplifying flow graph...");
 	Map/*<Node,Node>*/ m3 = graph.simplify();
 
+	// Record the classes whose statements make up each node
+	Map/*<Method,String>*/ method_classes = jt.getMethodClassMap();
+	node_classes = new HashMap();
+	Iterator mi = tr.getMap().entrySet().iterator();
+	while (mi.hasNext()) {
+	    Map.Entry e = (Map.Entry) mi.next();
+	    String c = (String)method_classes.get(((Statement)e.getKey()).getMethod());
+	    if (c == null) {
+		continue;
+	    }
+	    Iterator ni = ((Map)e.getValue()).values().iterator();
+	    while (ni.hasNext()) {
+		Node n = (Node)m3.get(ni.next());
+		Set cs = (Set)node_classes.get(n);
+		if (cs == null) {
+		    cs = new HashSet();
+		    node_classes.put(n, cs);
+		}
+		cs.add(c);
+	    }
+	}
+
 	debug("Transforming into grammar...");
 	//XXX: Grammar r = graph.toGrammar();
     grammar = graph.toGrammar();
@@ -185,6 +213,7 @@ public class StringAnalysis implements IsExternallyVisible {
 
 	// Make map
 	map = new HashMap();
+	node_map = new HashMap();
 	Iterator bi = hotspots.iterator();
 	while (bi.hasNext()) {
 	    ValueBox box = (ValueBox) bi.next();
@@ -196,6 +225,7 @@ public class StringAnalysis implements IsExternallyVisible {
 	    Nonterminal nt = n.getNonterminal();
 	    MLFAStatePair sp = nt.getMLFAStatePair();
 	    map.put(box, sp);
+	    node_map.put(box, n);
 	}
 	tostring_map = new HashMap();
 	Map/*<SootClass,StringStatement>*/ tostring_hotspot_map = jt.getToStringHotspotMap();
@@ -294,6 +324,64 @@ public class StringAnalysis implements IsExternallyVisible {
 	return mlfa.extract(sp);
     }
 
+    /** Returns the names of the classes whose code can contribute to the
+     *  string values at the given hotspot: the classes of all statements
+     *  from which there is a flow to the hotspot, including those of
+     *  callers passing arguments and of called methods.
+     *  The result is conservative, as nodes of different statements
+     *  may have been merged by the flow graph simplification.
+     *  @param box the Soot value box containing the expression.
+     *  @return a set of fully qualified class names.
+     *  @exception IllegalArgumentException if the expression is not a marked hotspot.
+     */
+    public final synchronized Set/*<String>*/ getDependencies(ValueBox box) {
+	Node start = (Node)node_map.get(box);
+	if (start == null) {
+	    throw new IllegalArgumentException("Expression is not a marked hotspot");
+	}
+	if (node_defs == null) {
+	    node_defs = new HashMap();
+	    Iterator ni = graph.getNodes().iterator();
+	    while (ni.hasNext()) {
+		Node def = (Node) ni.next();
+		Iterator ui = def.getUses().iterator();
+		while (ui.hasNext()) {
+		    Node user = ((Use) ui.next()).getUser();
+		    Set defs = (Set)node_defs.get(user);
+		    if (defs == null) {
+			defs = new HashSet();
+			node_defs.put(user, defs);
+		    }
+		    defs.add(def);
+		}
+	    }
+	}
+	Set/*<String>*/ classes = new HashSet();
+	Set/*<Node>*/ visited = new HashSet();
+	LinkedList/*<Node>*/ worklist = new LinkedList();
+	visited.add(start);
+	worklist.add(start);
+	while (!worklist.isEmpty()) {
+	    Node n = (Node) worklist.removeFirst();
+	    Set cs = (Set)node_classes.get(n);
+	    if (cs != null) {
+		classes.addAll(cs);
+	    }
+	    Set defs = (Set)node_defs.get(n);
+	    if (defs != null) {
+		Iterator di = defs.iterator();
+		while (di.hasNext()) {
+		    Object d = di.next();
+		    if (visited.add(d)) {
+			worklist.add(d);
+		    }
+		}
+	    }
+	}
+	classes.add(getClassName(box));
+	return classes;
+    }
+
     /** Computes the automaton describing the possible string
      *  values that can occur as a result of converting the given
      *  type into a string.
@@ -156,6 +156,26 @@ public class JavaTranslator {
 		return st.line_map;
 	}
 
+	/**
+	 * Returns the name of the class declaring each translated method,
+	 * toString methods included. The wrapper method belongs to no class.
+	 */
+	public Map/* <Method,String> */getMethodClassMap() {
+		Map/* <Method,String> */m = new HashMap();
+		Iterator si = sms_m.entrySet().iterator();
+		while (si.hasNext()) {
+			Map.Entry e = (Map.Entry) si.next();
+			String sig = (String) e.getKey();
+			m.put(e.getValue(), sig.substring(1, sig.indexOf(':')));
+		}
+		Iterator ti = tostring_methods.entrySet().iterator();
+		while (ti.hasNext()) {
+			Map.Entry e = (Map.Entry) ti.next();
+			m.put(e.getValue(), e.getKey());
+		}
+		return m;
+	}
+
 	void makeMethods() {
 		Collection/* <SootClass> */app = Scene.v().getApplicationClasses();
 		Iterator aci = app.iterator();
@@ -11,6 +11,7 @@ import java.util.Stack;
 import java.util.TreeSet;
 
 import dk.brics.automaton.Automaton;
+import dk.brics.automaton.FrozenAutomaton;
 import dk.brics.automaton.State;
 import dk.brics.automaton.StatePair;
 
@@ -20,7 +21,7 @@ import dk.brics.automaton.StatePair;
  */
 public class MLFA
 {
-    Map memo; // Map<MLFAStatePair,Automaton>
+    Map memo; // Map<MLFAStatePair,FrozenAutomaton>, frozen to keep the heap small
     Set seen; // Set<MLFAStatePair>
     Set states;
 
@@ -124,10 +125,11 @@ public class MLFA
 
     /**
      * Extracts standard minimal deterministic finite automaton from this MLFA. 
+     * Calls are serialized, as they share the memo of extracted automata.
      * @param p pair representing initial and final state
      * @return minimal deterministic finite automaton, should not be modified by caller
      */
-    public Automaton extract(MLFAStatePair p)
+    public synchronized Automaton extract(MLFAStatePair p)
     {
 	seen = new HashSet();
 	setReachable();
@@ -137,9 +139,10 @@ public class MLFA
     Automaton extract(MLFAState s, MLFAState f)
     {
 	MLFAStatePair p = new MLFAStatePair(s, f);
-	Automaton a = (Automaton) memo.get(p);
-	if (a!=null)
-	    return a;
+	FrozenAutomaton m = (FrozenAutomaton) memo.get(p);
+	if (m!=null)
+	    return m.toAutomaton();
+	Automaton a = null;
 	if (seen.contains(p))
 	    throw new RuntimeException("MLFA is non-rankable");
 	seen.add(p);
@@ -213,7 +216,7 @@ public class MLFA
 	    //a.minimize(); //FIXME: COmmented out temporarily
 	}
 	seen.remove(p);
-	memo.put(p, a);
+	memo.put(p, new FrozenAutomaton(a));
 	return a;
     }
 
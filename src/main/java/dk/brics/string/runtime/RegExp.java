@@ -89,7 +89,7 @@ public class RegExp
     public static boolean check(String s, String regexp)
 	throws IllegalArgumentException
     {
-	return (new dk.brics.automaton.RegExp(regexp)).toAutomaton(automata).run(s);
+	return (new dk.brics.automaton.RegExp(regexp)).toAutomaton(automata, false).run(s);
     }
 
     /**
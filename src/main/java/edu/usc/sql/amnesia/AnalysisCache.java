@@ -0,0 +1,273 @@
+package edu.usc.sql.amnesia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Record of an analysis run used to make the next one incremental: the
+ * content hash of every analyzed class, and for every hotspot the classes
+ * its value depends on along with what is needed to reuse its model.
+ *
+ * A hotspot can be reused when none of the classes it depended on in the
+ * previous run, and none of those it depends on now, have changed. When no
+ * class at all has changed, the string analysis is not run.
+ *
+ * <pre>
+ * int    magic ("AMNC")
+ * short  version
+ * UTF    options the models were built with
+ * int    number of classes, then per class: UTF name, UTF hash
+ * int    number of hotspots, then per hotspot:
+ *        UTF ID, UTF .aut path ("" in a pack), boolean user defined,
+ *        int size, int size before minimization, boolean too large,
+ *        int number of dependencies, UTF class name of each
+ * </pre>
+ */
+public class AnalysisCache {
+	public static final int MAGIC = 0x414D4E43;
+	public static final short VERSION = 1;
+
+	private final String options;
+	private final Map<String, String> classHashes = new TreeMap<String, String>();
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+	/**
+	 * @param options the settings that affect the models, a cache built with other options is not reused
+	 */
+	public AnalysisCache(String options) {
+		this.options = options;
+	}
+
+	/**
+	 * Hashes the class files of the given classes, read from a class
+	 * directory or from a JAR or WAR archive. Missing classes are left out.
+	 */
+	public void hashClasses(File classPath, Collection<String> classes) throws IOException {
+		if (classPath.isFile()) {
+			Set<String> names = new HashSet<String>(classes);
+			ZipFile zip = new ZipFile(classPath);
+			try {
+				for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements();) {
+					ZipEntry ze = e.nextElement();
+					String className = ClassInstrumenter.className(ze.getName());
+					if (className != null && names.contains(className)) {
+						classHashes.put(className, hash(zip.getInputStream(ze)));
+					}
+				}
+			} finally {
+				zip.close();
+			}
+		} else {
+			for (String c:classes) {
+				File classFile = new File(classPath, c.replace('.', File.separatorChar) + ".class");
+				if (classFile.isFile()) {
+					classHashes.put(c, hash(new FileInputStream(classFile)));
+				}
+			}
+		}
+	}
+
+	private static String hash(InputStream in) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b:digest.digest()) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Classes that were added, removed or modified since this cache was built. */
+	public Set<String> getChangedClasses(AnalysisCache current) {
+		Set<String> changed = new HashSet<String>();
+		for (Map.Entry<String, String> e:classHashes.entrySet()) {
+			if (!e.getValue().equals(current.classHashes.get(e.getKey()))) {
+				changed.add(e.getKey());
+			}
+		}
+		for (String c:current.classHashes.keySet()) {
+			if (!classHashes.containsKey(c)) {
+				changed.add(c);
+			}
+		}
+		return changed;
+	}
+
+	public synchronized Entry get(String id) {
+		return entries.get(id);
+	}
+
+	public synchronized void put(Entry entry) {
+		entries.put(entry.getID(), entry);
+	}
+
+	public synchronized Collection<Entry> getEntries() {
+		return Collections.unmodifiableCollection(entries.values());
+	}
+
+	/** The cache saved in the file, null if there is none or it was built with other options. */
+	public static AnalysisCache load(File file, String options) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (in.readInt() != MAGIC || in.readShort() != VERSION) {
+					return null;
+				}
+				if (!options.equals(in.readUTF())) {
+					return null;
+				}
+				AnalysisCache cache = new AnalysisCache(options);
+				int classes = in.readInt();
+				for (int i=0; i<classes; i++) {
+					String name = in.readUTF();
+					cache.classHashes.put(name, in.readUTF());
+				}
+				int hotspots = in.readInt();
+				for (int i=0; i<hotspots; i++) {
+					String id = in.readUTF();
+					String autPath = in.readUTF();
+					boolean userDefined = in.readBoolean();
+					int size = in.readInt();
+					int unminimizedSize = in.readInt();
+					boolean tooLarge = in.readBoolean();
+					Set<String> dependencies = new TreeSet<String>();
+					int n = in.readInt();
+					for (int j=0; j<n; j++) {
+						dependencies.add(in.readUTF());
+					}
+					cache.put(new Entry(id, autPath.length() == 0 ? null : autPath, userDefined, size, unminimizedSize, tooLarge, dependencies));
+				}
+				return cache;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Ignoring unreadable analysis cache: " + file);
+			return null;
+		}
+	}
+
+	public synchronized void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeUTF(options);
+			out.writeInt(classHashes.size());
+			for (Map.Entry<String, String> e:classHashes.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeUTF(e.getValue());
+			}
+			out.writeInt(entries.size());
+			for (Entry e:entries.values()) {
+				out.writeUTF(e.getID());
+				out.writeUTF(e.getAutPath() == null ? "" : e.getAutPath());
+				out.writeBoolean(e.isUserDefined());
+				out.writeInt(e.getSize());
+				out.writeInt(e.getUnminimizedSize());
+				out.writeBoolean(e.isTooLarge());
+				out.writeInt(e.getDependencies().size());
+				for (String c:e.getDependencies()) {
+					out.writeUTF(c);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/** What is remembered of the model of one hotspot. */
+	public static class Entry {
+		private final String id;
+		private final String autPath;
+		private final boolean userDefined;
+		private final int size;
+		private final int unminimizedSize;
+		private final boolean tooLarge;
+		private final Set<String> dependencies;
+
+		/**
+		 * @param autPath path of the .aut file relative to the automata directory, null if the model is in a pack
+		 */
+		public Entry(String id, String autPath, boolean userDefined, int size, int unminimizedSize, boolean tooLarge,
+				Set<String> dependencies) {
+			this.id = id;
+			this.autPath = autPath;
+			this.userDefined = userDefined;
+			this.size = size;
+			this.unminimizedSize = unminimizedSize;
+			this.tooLarge = tooLarge;
+			this.dependencies = new TreeSet<String>(dependencies);
+		}
+
+		public String getID() {
+			return id;
+		}
+
+		public String getAutPath() {
+			return autPath;
+		}
+
+		public boolean isUserDefined() {
+			return userDefined;
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public int getUnminimizedSize() {
+			return unminimizedSize;
+		}
+
+		public boolean isTooLarge() {
+			return tooLarge;
+		}
+
+		public Set<String> getDependencies() {
+			return Collections.unmodifiableSet(dependencies);
+		}
+
+		/** Whether one of the classes the model depended on is in the set. */
+		public boolean dependsOn(Set<String> classes) {
+			for (String c:dependencies) {
+				if (classes.contains(c)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
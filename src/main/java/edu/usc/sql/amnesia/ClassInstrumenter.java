@@ -0,0 +1,342 @@
+package edu.usc.sql.amnesia;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.bcel.classfile.ClassFormatException;
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+
+/**
+ * Instruments the analyzed classes of a class directory or of a JAR or WAR
+ * archive. Each class file is first checked with a scan of its constant
+ * pool: a class that does not refer to java.sql.Statement cannot contain a
+ * hotspot and is left untouched, without being parsed by BCEL. The other
+ * classes are rewritten on a pool of threads.
+ *
+ * Archives are read and written in one streaming pass. Entries are written
+ * in the order they were read, a bounded number of them being rewritten at
+ * the same time. Every entry is inflated and deflated again, java.util.zip
+ * cannot copy compressed data as it is: the content of untouched entries
+ * is unchanged but their compressed bytes may differ. Stored entries stay
+ * stored.
+ *
+ * BCEL keeps a static free list of instruction handles that is not
+ * thread-safe, it is only used when instructions are deleted, which
+ * simpleTransform never does.
+ */
+public class ClassInstrumenter {
+	private static final byte[] STATEMENT_CLASS = utf8("java/sql/Statement");
+	private static final String WAR_CLASSES = "WEB-INF/classes/";
+	private static final String CLASS_SUFFIX = ".class";
+
+	private final String appName;
+	private final String runtimeMonitor;
+	private final Set<String> classes;
+	private final int threads;
+
+	private final AtomicInteger rewritten = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+
+	/**
+	 * @param classes names of the analyzed classes, the only ones that are instrumented
+	 */
+	public ClassInstrumenter(String appName, String runtimeMonitor, Collection<String> classes, int threads) {
+		this.appName = appName;
+		this.runtimeMonitor = runtimeMonitor;
+		this.classes = new HashSet<String>(classes);
+		this.threads = Math.max(1, threads);
+	}
+
+	/** Instruments the class files of a directory in place. */
+	public void instrumentDirectory(File dir) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> pending = new LinkedList<Future<?>>();
+			for (String c:classes) {
+				final File classFile = new File(dir, c.replace('.', File.separatorChar) + CLASS_SUFFIX);
+				final byte[] original;
+				try {
+					original = read(classFile);
+				} catch (IOException e) {
+					e.printStackTrace();
+					continue;
+				}
+				if (!referencesStatement(original)) {
+					skipped.incrementAndGet();
+					continue;
+				}
+				pending.add(pool.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						byte[] bytes = transform(classFile.getName(), original);
+						if (bytes != original) {
+							write(classFile, bytes);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> f:pending) {
+				try {
+					get(f);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Copies a JAR or WAR archive, instrumenting its analyzed classes. Classes
+	 * of a WAR are looked for under WEB-INF/classes.
+	 */
+	public void instrumentArchive(File in, File out) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ZipInputStream zin = new ZipInputStream(new BufferedInputStream(new FileInputStream(in)));
+		ZipOutputStream zout = null;
+		try {
+			zout = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(out)));
+			int window = threads * 4;
+			LinkedList<Entry> pending = new LinkedList<Entry>();
+			ZipEntry ze;
+			while ((ze = zin.getNextEntry()) != null) {
+				final Entry entry = new Entry(ze, ze.isDirectory() ? new byte[0] : readFully(zin));
+				final String className = className(ze.getName());
+				if (className != null && classes.contains(className)) {
+					if (referencesStatement(entry.data)) {
+						entry.rewritten = pool.submit(new Callable<byte[]>() {
+							public byte[] call() {
+								return transform(className, entry.data);
+							}
+						});
+					} else {
+						skipped.incrementAndGet();
+					}
+				}
+				pending.add(entry);
+				while (pending.size() > window || (!pending.isEmpty() && pending.getFirst().isDone())) {
+					pending.removeFirst().write(zout);
+				}
+			}
+			while (!pending.isEmpty()) {
+				pending.removeFirst().write(zout);
+			}
+			zout.finish();
+		} finally {
+			pool.shutdownNow();
+			zin.close();
+			if (zout != null) {
+				zout.close();
+			}
+		}
+	}
+
+	static String className(String entryName) {
+		if (!entryName.endsWith(CLASS_SUFFIX)) {
+			return null;
+		}
+		String name = entryName.substring(0, entryName.length() - CLASS_SUFFIX.length());
+		if (name.startsWith(WAR_CLASSES)) {
+			name = name.substring(WAR_CLASSES.length());
+		}
+		return name.replace('/', '.');
+	}
+
+	//the instrumented class, or the original bytes if it could not be instrumented
+	private byte[] transform(String name, byte[] original) {
+		try {
+			JavaClass jc = new ClassParser(new ByteArrayInputStream(original), name).parse();
+			JavaClass newClass = amnesia.simpleTransform(jc, appName, runtimeMonitor);
+			if (newClass != null) {
+				rewritten.incrementAndGet();
+				return newClass.getBytes();
+			}
+		} catch (ClassFormatException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return original;
+	}
+
+	/**
+	 * Whether the constant pool of the class file has the name of
+	 * java.sql.Statement. Every call to one of its methods goes through a
+	 * method reference to that class, so a class without it has no hotspot.
+	 * Malformed class files are reported as referencing it, to be handled by
+	 * BCEL.
+	 */
+	static boolean referencesStatement(byte[] b) {
+		try {
+			int count = u2(b, 8);
+			int p = 10;
+			for (int i=1; i<count; i++) {
+				switch (b[p]) {
+				case 1: //Utf8
+					int length = u2(b, p+1);
+					if (length == STATEMENT_CLASS.length && regionEquals(b, p+3, STATEMENT_CLASS)) {
+						return true;
+					}
+					p += 3 + length;
+					break;
+				case 7: case 8: case 16: case 19: case 20: //Class, String, MethodType, Module, Package
+					p += 3;
+					break;
+				case 15: //MethodHandle
+					p += 4;
+					break;
+				case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+					p += 5;
+					break;
+				case 5: case 6: //Long and Double take two entries
+					p += 9;
+					i++;
+					break;
+				default:
+					return true;
+				}
+			}
+			return false;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return true;
+		}
+	}
+
+	private static int u2(byte[] b, int p) {
+		return ((b[p] & 0xff) << 8) | (b[p+1] & 0xff);
+	}
+
+	private static boolean regionEquals(byte[] b, int p, byte[] s) {
+		for (int i=0; i<s.length; i++) {
+			if (b[p+i] != s[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return readFully(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void write(File file, byte[] bytes) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while instrumenting", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/** Number of classes that were rewritten. */
+	public int getRewrittenCount() {
+		return rewritten.get();
+	}
+
+	/** Number of analyzed classes left untouched by the constant pool scan. */
+	public int getSkippedCount() {
+		return skipped.get();
+	}
+
+	//an archive entry read but not written yet
+	private static class Entry {
+		final ZipEntry entry;
+		final byte[] data;
+		Future<byte[]> rewritten;
+
+		Entry(ZipEntry entry, byte[] data) {
+			this.entry = entry;
+			this.data = data;
+		}
+
+		boolean isDone() {
+			return rewritten == null || rewritten.isDone();
+		}
+
+		void write(ZipOutputStream zout) throws IOException {
+			byte[] bytes = rewritten == null ? data : get(rewritten);
+			ZipEntry out = new ZipEntry(entry.getName());
+			out.setTime(entry.getTime());
+			if (entry.getComment() != null) {
+				out.setComment(entry.getComment());
+			}
+			if (entry.getExtra() != null) {
+				out.setExtra(entry.getExtra());
+			}
+			//stored entries, such as the libraries of a WAR, stay uncompressed
+			if (entry.getMethod() == ZipEntry.STORED) {
+				CRC32 crc = new CRC32();
+				crc.update(bytes);
+				out.setMethod(ZipEntry.STORED);
+				out.setSize(bytes.length);
+				out.setCompressedSize(bytes.length);
+				out.setCrc(crc.getValue());
+			}
+			zout.putNextEntry(out);
+			zout.write(bytes);
+			zout.closeEntry();
+		}
+	}
+}
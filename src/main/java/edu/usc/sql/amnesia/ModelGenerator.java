@@ -0,0 +1,349 @@
+package edu.usc.sql.amnesia;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.math.stat.descriptive.SummaryStatistics;
+
+import soot.ValueBox;
+import edu.usc.sql.models.HotspotModel;
+import edu.usc.sql.models.ModelPack;
+import edu.usc.sql.amnesia.util.AmnesiaConstants;
+import edu.usc.sql.amnesia.util.AutomataName;
+import dk.brics.automaton.Automaton;
+import dk.brics.string.StringAnalysis;
+
+/**
+ * Builds, minimizes and writes the model of every hotspot on a fork/join
+ * pool. The string analysis is not thread-safe, so the automata are
+ * extracted from it one at a time; everything after that runs in parallel
+ * on a private copy of the automaton.
+ *
+ * Hotspots with the same ID, such as two calls on one source line, share
+ * a model at runtime. They are grouped before forking and their automata
+ * are joined into a single model, built and written by one worker.
+ */
+public class ModelGenerator {
+	//hotspots handled by one task without splitting further
+	private static final int LEAF_SIZE = 4;
+
+	private static final String[] PHASES = {"extract", "reduce", "model", "graph", "minimize", "write"};
+	private static final int EXTRACT=0, REDUCE=1, MODEL=2, GRAPH=3, MINIMIZE=4, WRITE=5;
+
+	private final StringAnalysis sa;
+	private final String appName;
+	private final File autDir;
+	private final File imgsDir;
+	private final ModelPack.Writer packWriter;
+	private final boolean serializedFormat;
+	private final boolean minimize;
+	private final Map<String, Boolean> userDefined;
+
+	private final AtomicLong[] phaseTimes = new AtomicLong[PHASES.length];
+	private long wallTime;
+
+	//cache of the previous run and the one being built, null without incremental analysis
+	private AnalysisCache previous;
+	private AnalysisCache current;
+	private Set<String> changedClasses;
+	private ModelPack previousPack;
+	private final AtomicInteger reused = new AtomicInteger();
+
+	//hotspots grouped by ID, in the order of their first occurrence
+	private List<List<ValueBox>> hotspots;
+	//per hotspot ID, -1 until its model has been built
+	private int[] unminimizedSizes;
+	private int[] sizes;
+	private boolean[] tooLarge;
+	//per hotspot ID, its .aut file once written or reused, null with a pack
+	private String[] ids;
+	private String[] autPaths;
+
+	/**
+	 * @param packWriter writer of the model pack, null to write .aut files to autDir
+	 * @param userDefined filled with whether each hotspot's model has user defined elements, must be thread-safe
+	 */
+	public ModelGenerator(StringAnalysis sa, String appName, File autDir, File imgsDir, ModelPack.Writer packWriter,
+			boolean serializedFormat, boolean minimize, Map<String, Boolean> userDefined) {
+		this.sa = sa;
+		this.appName = appName;
+		this.autDir = autDir;
+		this.imgsDir = imgsDir;
+		this.packWriter = packWriter;
+		this.serializedFormat = serializedFormat;
+		this.minimize = minimize;
+		this.userDefined = userDefined;
+		for (int i=0; i<PHASES.length; i++) {
+			phaseTimes[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Makes the run incremental: the models of the previous run are reused for
+	 * the hotspots whose dependencies have not changed.
+	 * @param previous cache of the previous run, null if there is none
+	 * @param current cache filled with the hotspots of this run
+	 * @param previousPack pack written by the previous run, needed to reuse its models if a pack is written
+	 */
+	public void setCache(AnalysisCache previous, AnalysisCache current, ModelPack previousPack) {
+		this.previous = previous;
+		this.current = current;
+		this.previousPack = previousPack;
+		if (previous != null) {
+			changedClasses = previous.getChangedClasses(current);
+		}
+	}
+
+	public void run(Collection<ValueBox> hotspotSet, int threads) {
+		Map<String, List<ValueBox>> groups = new LinkedHashMap<String, List<ValueBox>>();
+		for (ValueBox e:hotspotSet) {
+			String id = new AutomataName(appName, sa.getClassName(e), sa.getLineNumber(e)).getAutomataID();
+			List<ValueBox> group = groups.get(id);
+			if (group == null) {
+				group = new ArrayList<ValueBox>();
+				groups.put(id, group);
+			}
+			group.add(e);
+		}
+		hotspots = new ArrayList<List<ValueBox>>(groups.values());
+		unminimizedSizes = new int[hotspots.size()];
+		sizes = new int[hotspots.size()];
+		tooLarge = new boolean[hotspots.size()];
+		ids = new String[hotspots.size()];
+		autPaths = new String[hotspots.size()];
+		Arrays.fill(sizes, -1);
+		long start = System.nanoTime();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.invoke(new Task(0, hotspots.size()));
+		} finally {
+			pool.shutdown();
+		}
+		wallTime = System.nanoTime() - start;
+	}
+
+	private class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from, to;
+
+		Task(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= LEAF_SIZE) {
+				for (int i=from; i<to; i++) {
+					generate(i);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Task(from, middle), new Task(middle, to));
+			}
+		}
+	}
+
+	private void generate(int i) {
+		List<ValueBox> group = hotspots.get(i);
+		long t = System.nanoTime();
+		AutomataName autName;
+		Set<String> dependencies = null;
+		AnalysisCache.Entry cached = null;
+		synchronized (sa) {
+			autName = new AutomataName(appName, sa.getClassName(group.get(0)), sa.getLineNumber(group.get(0)));
+			if (current != null) {
+				dependencies = new HashSet<String>();
+				for (ValueBox e:group) {
+					dependencies.addAll(sa.getDependencies(e));
+				}
+			}
+		}
+		if (previous != null) {
+			cached = previous.get(autName.getAutomataID());
+		}
+		try {
+			if (cached != null && !cached.dependsOn(changedClasses) && !dependsOn(dependencies, changedClasses) && reuse(i, cached)) {
+				current.put(new AnalysisCache.Entry(cached.getID(), cached.getAutPath(), cached.isUserDefined(), cached.getSize(),
+						cached.getUnminimizedSize(), cached.isTooLarge(), dependencies));
+				reused.incrementAndGet();
+				return;
+			}
+			Automaton aut;
+			//the extracted automaton is shared with the analysis, it is copied before reduce() changes it
+			synchronized (sa) {
+				aut = (Automaton)sa.getAutomaton(group.get(0)).clone();
+				for (int k=1; k<group.size(); k++) {
+					aut = aut.union(sa.getAutomaton(group.get(k)));
+				}
+			}
+			t = time(EXTRACT, t);
+			aut.reduce();
+			t = time(REDUCE, t);
+			//writeGraph(imgsDir.getPath() + File.separator + filename + ".char", aut.toDot()); //char-level representation
+			HotspotModel sqlAut=new HotspotModel(aut);
+			t = time(MODEL, t);
+			amnesia.writeGraph(imgsDir.getPath() + File.separator + autName.getAutomataDottyPath(), sqlAut.toDot());
+			t = time(GRAPH, t);
+			unminimizedSizes[i] = sqlAut.getNumberOfStates();
+			if (minimize && !sqlAut.minimize()) {
+				tooLarge[i] = true;
+			}
+			t = time(MINIMIZE, t);
+			//writeGraph(imgsDir.getPath() + File.separator + filename + ".mintoken", sqlAut.toDot()); //minimized token representation
+			if (packWriter != null) {
+				packWriter.add(autName.getAutomataID(), sqlAut);
+			} else {
+				amnesia.writeAut(autDir.getPath()+File.separator+autName.getAutomataRegularPath(), sqlAut, serializedFormat);
+				ids[i] = autName.getAutomataID();
+				autPaths[i] = autName.getAutomataRegularPath();
+			}
+			time(WRITE, t);
+			userDefined.put(autName.getAutomataID(), sqlAut.hasUserDefinedElements());
+			sizes[i] = sqlAut.getNumberOfStates();
+			if (current != null) {
+				current.put(new AnalysisCache.Entry(autName.getAutomataID(), packWriter != null ? null : autName.getAutomataRegularPath(),
+						sqlAut.hasUserDefinedElements(), sizes[i], unminimizedSizes[i], tooLarge[i], dependencies));
+			}
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	private static boolean dependsOn(Set<String> dependencies, Set<String> classes) {
+		for (String c:dependencies) {
+			if (classes.contains(c)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//takes the model of the previous run as the one of hotspot i, false if it is not available
+	private boolean reuse(int i, AnalysisCache.Entry cached) throws IOException {
+		if (packWriter != null) {
+			//copied as it is encoded, the previous pack has the same version
+			byte[] model = previousPack == null ? null : previousPack.getEncoded(cached.getID());
+			if (model == null) {
+				return false;
+			}
+			packWriter.addEncoded(cached.getID(), model);
+		} else if (cached.getAutPath() == null || !new File(autDir, cached.getAutPath()).isFile()) {
+			return false;
+		} else {
+			ids[i] = cached.getID();
+			autPaths[i] = cached.getAutPath();
+		}
+		userDefined.put(cached.getID(), cached.isUserDefined());
+		unminimizedSizes[i] = cached.getUnminimizedSize();
+		sizes[i] = cached.getSize();
+		tooLarge[i] = cached.isTooLarge();
+		return true;
+	}
+
+	/**
+	 * Reuses all the models of the previous run, when no class has changed
+	 * since. Returns false, without reusing anything, if one of its models is
+	 * no longer available.
+	 */
+	public boolean runCached(AnalysisCache cache) {
+		List<AnalysisCache.Entry> entries = new ArrayList<AnalysisCache.Entry>(cache.getEntries());
+		for (AnalysisCache.Entry cached:entries) {
+			if (packWriter != null ? previousPack == null || !previousPack.contains(cached.getID())
+					: cached.getAutPath() == null || !new File(autDir, cached.getAutPath()).isFile()) {
+				return false;
+			}
+		}
+		unminimizedSizes = new int[entries.size()];
+		sizes = new int[entries.size()];
+		tooLarge = new boolean[entries.size()];
+		ids = new String[entries.size()];
+		autPaths = new String[entries.size()];
+		try {
+			for (int i=0; i<entries.size(); i++) {
+				if (!reuse(i, entries.get(i))) {
+					return false;
+				}
+			}
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+			return false;
+		}
+		reused.set(entries.size());
+		return true;
+	}
+
+	/**
+	 * Writes the index of the .aut files of this run to the aut directory,
+	 * one line per file with its name and hotspot ID separated by a tab. The
+	 * monitor preloads the models it lists under their ID.
+	 */
+	public void writeIndex() throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(new File(autDir, AmnesiaConstants.AUT_INDEX_FILE)), "UTF-8");
+		try {
+			for (int i=0; i<autPaths.length; i++) {
+				if (autPaths[i] != null) {
+					out.write(autPaths[i] + "\t" + ids[i] + "\n");
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Number of hotspots whose model was taken from the previous run. */
+	public int getReusedCount() {
+		return reused.get();
+	}
+
+	private long time(int phase, long start) {
+		long now = System.nanoTime();
+		phaseTimes[phase].addAndGet(now - start);
+		return now;
+	}
+
+	/** Sizes of the written models, before minimization if unminimized is true. */
+	public SummaryStatistics getSizes(boolean unminimized) {
+		SummaryStatistics stats = SummaryStatistics.newInstance();
+		for (int i=0; i<sizes.length; i++) {
+			if (sizes[i] != -1) {
+				stats.addValue(unminimized ? unminimizedSizes[i] : sizes[i]);
+			}
+		}
+		return stats;
+	}
+
+	/** Number of models too large to be minimized. */
+	public int getTooLargeCount() {
+		int count = 0;
+		for (boolean b:tooLarge) {
+			if (b) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** Time spent in each phase summed over all workers, and the elapsed time. */
+	public String getPhaseTimes() {
+		StringBuilder times = new StringBuilder();
+		for (int i=0; i<PHASES.length; i++) {
+			times.append(PHASES[i]).append(' ').append(phaseTimes[i].get()/1000000).append("ms, ");
+		}
+		return times.append("elapsed ").append(wallTime/1000000).append("ms").toString();
+	}
+}
@@ -7,22 +7,23 @@
 
 package edu.usc.sql.amnesia;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.util.ArrayList;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.bcel.Constants;
 import org.apache.bcel.classfile.ClassFormatException;
-import org.apache.bcel.classfile.ClassParser;
 import org.apache.bcel.classfile.JavaClass;
 import org.apache.bcel.classfile.LineNumberTable;
 import org.apache.bcel.classfile.Method;
@@ -35,6 +36,7 @@ import org.apache.bcel.generic.InstructionHandle;
 import org.apache.bcel.generic.InstructionList;
 import org.apache.bcel.generic.InvokeInstruction;
 import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
 import org.apache.bcel.generic.PUSH;
 import org.apache.bcel.generic.Type;
 import org.apache.commons.math.stat.descriptive.StatisticalSummary;
@@ -43,34 +45,50 @@ import org.apache.commons.math.stat.descriptive.SummaryStatistics;
 import soot.Scene;
 import soot.ValueBox;
 import edu.usc.sql.models.HotspotModel;
+import edu.usc.sql.models.HotspotModelIO;
+import edu.usc.sql.models.ModelPack;
 import edu.usc.sql.amnesia.config.AnalysisProperties;
 import edu.usc.sql.amnesia.config.WAMConfiguration;
 import edu.usc.sql.amnesia.exceptions.AnalysisPropertiesException;
 import edu.usc.sql.amnesia.exceptions.ApplicationPropertiesException;
+import edu.usc.sql.amnesia.util.AmnesiaConstants;
 import edu.usc.sql.amnesia.util.AutomataName;
-import dk.brics.automaton.Automaton;
 import dk.brics.string.StringAnalysis;
 
 public class amnesia {
 
 	//The function to be called, must be static
 	public static final String reportFunction="report";
+	//The functions called around statement batches, static as well
+	public static final String batchFunction="batch";
+	public static final String reportBatchFunction="reportBatch";
+	public static final String clearBatchFunction="clearBatch";
 
 	//The hotspot signatures to look for in Soot and bcel format
 	public static String[] sootSigs = {
 		"<java.sql.Statement: boolean execute(java.lang.String)>",
 		"<java.sql.Statement: java.sql.ResultSet executeQuery(java.lang.String)>",
-	"<java.sql.Statement: int executeUpdate(java.lang.String)>" };
+	"<java.sql.Statement: int executeUpdate(java.lang.String)>",
+	"<java.sql.Statement: void addBatch(java.lang.String)>" };
 
 	public static String[] bcelSigs = {
 		"java.sql.Statement.execute(Ljava/lang/String;)Z",
 		"java.sql.Statement.executeQuery(Ljava/lang/String;)Ljava/sql/ResultSet;",
-	"java.sql.Statement.executeUpdate(Ljava/lang/String;)I" };
+	"java.sql.Statement.executeUpdate(Ljava/lang/String;)I",
+	"java.sql.Statement.addBatch(Ljava/lang/String;)V" };
+
+	//Queries added to a batch are checked together when the batch is executed
+	public static final String bcelAddBatchSig = "java.sql.Statement.addBatch(Ljava/lang/String;)V";
+	public static final String bcelExecuteBatchSig = "java.sql.Statement.executeBatch()[I";
+	public static final String bcelExecuteLargeBatchSig = "java.sql.Statement.executeLargeBatch()[J";
+	public static final String bcelClearBatchSig = "java.sql.Statement.clearBatch()V";
 
 	public static final String CONFIG_FILE_NAME="config.xml";
 
-	private static int instrHotspotCount=0, optHotspotCount=0, totalHotspotCount=0;
-	private static Map<String, Boolean> userDefined=new HashMap<String, Boolean>();
+	private static final ObjectType STATEMENT_TYPE = new ObjectType("java.sql.Statement");
+
+	private static final AtomicInteger instrHotspotCount=new AtomicInteger(), optHotspotCount=new AtomicInteger(), totalHotspotCount=new AtomicInteger();
+	private static Map<String, Boolean> userDefined=new ConcurrentHashMap<String, Boolean>();
 
 	public static void main(String[] args)  {
 
@@ -89,20 +107,47 @@ public class amnesia {
 
 			String appName = application.getAppName();
 			String runtimeMonitor=properties.getProperty("runtime.monitor");
+			boolean minimize=!"false".equalsIgnoreCase(properties.getProperty(AmnesiaConstants.PROP_AUT_MINIMIZE));
+			boolean serializedFormat=AmnesiaConstants.AUT_FORMAT_SERIALIZED.equals(properties.getProperty(AmnesiaConstants.PROP_AUT_FORMAT));
+			String packName=properties.getProperty(AmnesiaConstants.PROP_AUT_PACK);
+			ModelPack.Writer packWriter=null;
+			if (packName != null && packName.trim().length() > 0) {
+				packWriter=new ModelPack.Writer();
+			}
+			//classes are instrumented in place, unless they come from an archive
+			File archive=null, instrumentedArchive=null;
+			String archiveProperty=properties.getProperty(AmnesiaConstants.PROP_INSTRUMENT_ARCHIVE);
+			if (archiveProperty != null && archiveProperty.trim().length() > 0) {
+				archive=new File(archiveProperty.trim());
+			} else if (classPath.isFile()) {
+				archive=classPath;
+			}
+			if (archive != null) {
+				String outputProperty=properties.getProperty(AmnesiaConstants.PROP_INSTRUMENT_OUTPUT);
+				if (outputProperty != null && outputProperty.trim().length() > 0) {
+					instrumentedArchive=new File(outputProperty.trim());
+				} else {
+					String name=archive.getName();
+					int dot=name.lastIndexOf('.');
+					instrumentedArchive=new File(archive.getAbsoluteFile().getParentFile(),
+							dot == -1 ? name + "-instrumented" : name.substring(0, dot) + "-instrumented" + name.substring(dot));
+				}
+			}
+			File baseDir=classPath.isFile() ? classPath.getAbsoluteFile().getParentFile() : classPath;
 			File autDir=new File(properties.getProperty("dir.aut"));
 			File imgsDir=new File(properties.getProperty("dir.imgs"));
 //			String autDirName=properties.getProperty("dir.aut")+File.separator+appName;
 //			String imgsDirName=properties.getProperty("dir.imgs")+File.separator+appName;
 			
 			if (!autDir.isAbsolute()) {
-				autDir=new File(classPath+ File.separator +  autDir.getPath());
+				autDir=new File(baseDir+ File.separator +  autDir.getPath());
 			}
 			if (!autDir.exists()) {
 				autDir.mkdirs();
 			}
 			
 			if (!imgsDir.isAbsolute()) {
-				imgsDir=new File(classPath+ File.separator +  imgsDir.getPath());
+				imgsDir=new File(baseDir+ File.separator +  imgsDir.getPath());
 			}
 			if (!imgsDir.exists()) {
 				imgsDir.mkdirs();
@@ -112,7 +157,7 @@ public class amnesia {
 			System.out.println("\tAnalysis property file: " + propertyFile.getAbsolutePath());
 			System.out.println("\tApplication property file: " + configFile.getAbsolutePath());
 			System.out.println("\tClass path: " + classPath);
-			System.out.println("\tInstrumented classes: " + classPath);
+			System.out.println("\tInstrumented classes: " + (archive != null ? instrumentedArchive.getAbsolutePath() : classPath));
 			System.out.println("\tAutomata output: " + autDir.getAbsolutePath());
 			System.out.println("\tImage output: " + imgsDir.getAbsolutePath());
 			
@@ -120,72 +165,110 @@ public class amnesia {
 			Scene.v().setSootClassPath(cp);
 			
 			Collection<String> classesToAnalyze=application.getClasses();
-			System.out.print("\tNumber of classes loaded: ");
-			for (String classname:classesToAnalyze) {
-				StringAnalysis.loadClass(classname);
-			}
-			System.out.println(classesToAnalyze.size());
 
-			System.out.print("\tHotspot signatures: ");
-			Set<ValueBox> hotspots = new HashSet<ValueBox>();
-			for (String sig:sootSigs) {
-				hotspots.addAll(StringAnalysis.getExps(sig, 0));
+			int threads=Runtime.getRuntime().availableProcessors();
+			String threadsProperty=properties.getProperty(AmnesiaConstants.PROP_ANALYSIS_THREADS);
+			if (threadsProperty != null && threadsProperty.trim().length() > 0) {
+				threads=Integer.parseInt(threadsProperty.trim());
 			}
-			StringAnalysis sa = new StringAnalysis(hotspots);     
-			System.out.println(sootSigs.length);
-
-			//Iterate through each hotspot
-			System.out.print("\tAnalyzing " + hotspots.size() + " hotspots...");
-			SummaryStatistics stats = SummaryStatistics.newInstance();        
-			for (ValueBox e:hotspots) {
-				AutomataName autName = new AutomataName(appName, sa.getClassName(e), sa.getLineNumber(e));
-
-				try {
-					Automaton aut=sa.getAutomaton(e);
-					aut.reduce();
-					//writeGraph(imgsDir.getPath() + File.separator + filename + ".char", aut.toDot()); //char-level representation
-					HotspotModel sqlAut=new HotspotModel(aut);
-					writeGraph(imgsDir.getPath() + File.separator + autName.getAutomataDottyPath(), sqlAut.toDot());
-					//sqlAut.minimize();
-					//writeGraph(imgsDir.getPath() + File.separator + filename + ".mintoken", sqlAut.toDot()); //minimized token representation
-					ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(autDir.getPath()+File.separator+autName.getAutomataRegularPath()));
-					out.writeObject(sqlAut);
-					out.close();              
-					userDefined.put(autName.getAutomataID(), sqlAut.hasUserDefinedElements());
-					stats.addValue(sqlAut.getNumberOfStates());
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
+			File packFile=packWriter == null ? null : new File(autDir, packName.trim());
+
+			//Incremental analysis, only the hotspots depending on changed classes are analyzed again
+			File cacheFile=null;
+			AnalysisCache previousCache=null, cache=null;
+			ModelPack previousPack=null;
+			String cacheProperty=properties.getProperty(AmnesiaConstants.PROP_ANALYSIS_CACHE);
+			if (cacheProperty != null && cacheProperty.trim().length() > 0) {
+				cacheFile=new File(cacheProperty.trim());
+				if (!cacheFile.isAbsolute()) {
+					cacheFile=new File(autDir, cacheFile.getPath());
 				}
+				String options="app=" + appName + ";minimize=" + minimize + ";serialized=" + serializedFormat + ";pack=" + (packFile != null);
+				cache=new AnalysisCache(options);
+				cache.hashClasses(classPath, classesToAnalyze);
+				previousCache=AnalysisCache.load(cacheFile, options);
+				if (previousCache != null && packFile != null && packFile.isFile()) {
+					//in the heap, the file is replaced by the new pack
+					previousPack=ModelPack.read(packFile);
+				}
+				System.out.println("\tAnalysis cache: " + cacheFile.getAbsolutePath());
 			}
-			System.out.println("done!");
 
-			StatisticalSummary summary = stats.getSummary();
-			System.out.println("Automaton size: ");
-			System.out.println("\tAverage: " + Math.rint(summary.getMean()));
-			System.out.println("\tStd dev: " + Math.rint(summary.getStandardDeviation()));
-			System.out.println("\tMax: " + summary.getMax());
-			System.out.println("\tMin: " + summary.getMin());
+			int hotspotCount;
+			ModelGenerator generator = new ModelGenerator(null, appName, autDir, imgsDir, packWriter, serializedFormat, minimize, userDefined);
+			generator.setCache(previousCache, cache, previousPack);
+			if (previousCache != null && previousCache.getChangedClasses(cache).isEmpty() && generator.runCached(previousCache)) {
+				System.out.println("\tNo class has changed, reusing all " + generator.getReusedCount() + " models");
+				hotspotCount=generator.getReusedCount();
+				cache=previousCache;
+			} else {
+				System.out.print("\tNumber of classes loaded: ");
+				for (String classname:classesToAnalyze) {
+					StringAnalysis.loadClass(classname);
+				}
+				System.out.println(classesToAnalyze.size());
+
+				System.out.print("\tHotspot signatures: ");
+				Set<ValueBox> hotspots = new HashSet<ValueBox>();
+				for (String sig:sootSigs) {
+					hotspots.addAll(StringAnalysis.getExps(sig, 0));
+				}
+				StringAnalysis sa = new StringAnalysis(hotspots);     
+				System.out.println(sootSigs.length);
+
+				//Build the model of each hotspot
+				System.out.print("\tAnalyzing " + hotspots.size() + " hotspots on " + threads + " threads...");
+				generator = new ModelGenerator(sa, appName, autDir, imgsDir, packWriter, serializedFormat, minimize, userDefined);
+				generator.setCache(previousCache, cache, previousPack);
+				generator.run(hotspots, threads);
+				System.out.println("done!");
+				if (cache != null) {
+					System.out.println("\tReused models: " + generator.getReusedCount());
+				}
+				hotspotCount=hotspots.size();
+			}
+			if (packWriter != null) {
+				packWriter.write(packFile);
+				System.out.println("\tModel pack: " + packFile.getAbsolutePath());
+			} else {
+				generator.writeIndex();
+			}
+			if (cache != null) {
+				cache.save(cacheFile);
+			}
+
+			System.out.println("\tPhase times: " + generator.getPhaseTimes());
+
+			SummaryStatistics stats = generator.getSizes(false);
+			SummaryStatistics unminimizedStats = generator.getSizes(true);
+			int unminimized = generator.getTooLargeCount();
+			if (minimize) {
+				printSummary("Automaton size before minimization: ", unminimizedStats.getSummary());
+				printSummary("Automaton size after minimization: ", stats.getSummary());
+				System.out.println("\tTotal states: " + Math.rint(unminimizedStats.getSum()) + " -> " + Math.rint(stats.getSum()));
+				if (unminimized > 0) {
+					System.out.println("\tNot minimized (too large): " + unminimized);
+				}
+			} else {
+				printSummary("Automaton size: ", stats.getSummary());
+			}
 
 
 			System.out.print("Instrumenting classes...");
-			for (String c:classesToAnalyze) {
-				String filePath = classPath+File.separator+c.replace('.', File.separatorChar)+".class";
-				try {
-					JavaClass origClass = (new ClassParser(filePath)).parse();
-					JavaClass newClass = simpleTransform(origClass, appName, runtimeMonitor);
-					newClass.dump(filePath);
-				} catch (ClassFormatException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
-				} 
+			ClassInstrumenter instrumenter = new ClassInstrumenter(appName, runtimeMonitor, classesToAnalyze, threads);
+			if (archive != null) {
+				instrumenter.instrumentArchive(archive, instrumentedArchive);
+			} else {
+				instrumenter.instrumentDirectory(classPath);
 			}
 			System.out.println("done!");
 
-			System.out.println("\tOptimized points: " + optHotspotCount);
-			System.out.println("\tInstrumented points: " + instrHotspotCount);
-			System.out.println("\tTotal hotspots: " + totalHotspotCount);
-			if (totalHotspotCount != hotspots.size()) {
+			System.out.println("\tRewritten classes: " + instrumenter.getRewrittenCount());
+			System.out.println("\tClasses without hotspots: " + instrumenter.getSkippedCount());
+			System.out.println("\tOptimized points: " + optHotspotCount.get());
+			System.out.println("\tInstrumented points: " + instrHotspotCount.get());
+			System.out.println("\tTotal hotspots: " + totalHotspotCount.get());
+			if (totalHotspotCount.get() != hotspotCount) {
 				System.err.println("BCEL and Soot found a different amount of hotspots! That's really weird...");
 			}
 
@@ -203,11 +286,21 @@ public class amnesia {
 	}
 
 
+	private static void printSummary(String title, StatisticalSummary summary) {
+		System.out.println(title);
+		System.out.println("\tAverage: " + Math.rint(summary.getMean()));
+		System.out.println("\tStd dev: " + Math.rint(summary.getStandardDeviation()));
+		System.out.println("\tMax: " + summary.getMax());
+		System.out.println("\tMin: " + summary.getMin());
+	}
+
+
 	public static JavaClass simpleTransform(JavaClass jc, String appName, String runtimeMonitor) {
 		try {
 			ClassGen cg = new ClassGen(jc);
 			ConstantPoolGen cpg = cg.getConstantPool();
 			InstructionFactory instrFactory = new InstructionFactory(cg);
+			Set<String> dbSigs = new HashSet<String>(Arrays.asList(bcelSigs));
 
 			for (Method m:cg.getMethods()) {
 				MethodGen mg = new MethodGen(m, jc.getClassName(), cpg);
@@ -220,20 +313,32 @@ public class amnesia {
 						if (currInstr instanceof InvokeInstruction) {
 							InvokeInstruction instr = (InvokeInstruction) currInstr;
 							String signature=instr.getClassName(cpg) + "." + instr.getMethodName(cpg) + instr.getSignature(cpg); 
-							ArrayList<String> dbSigList = new ArrayList<String>(Arrays.asList(bcelSigs));
-							if (dbSigList.contains(signature)) {
-								totalHotspotCount++;
+							if (dbSigs.contains(signature)) {
+								totalHotspotCount.incrementAndGet();
 								AutomataName autName = new AutomataName(appName, mg.getClassName(), lineNumberTable.getSourceLine(currHandle.getPosition()));
 								if (userDefined.get(autName.getAutomataID())) {
 									InstructionList checkerInstructions = new InstructionList();
-									checkerInstructions.append(InstructionConstants.DUP);
-									checkerInstructions.append(new PUSH(cpg, autName.getAutomataID()));
-									checkerInstructions.append(instrFactory.createInvoke(runtimeMonitor, reportFunction, Type.VOID, new Type[] { Type.STRING, Type.STRING }, Constants.INVOKESTATIC));
+									if (signature.equals(bcelAddBatchSig)) {
+										//statement and query
+										checkerInstructions.append(InstructionConstants.DUP2);
+										checkerInstructions.append(new PUSH(cpg, autName.getAutomataID()));
+										checkerInstructions.append(instrFactory.createInvoke(runtimeMonitor, batchFunction, Type.VOID, new Type[] { STATEMENT_TYPE, Type.STRING, Type.STRING }, Constants.INVOKESTATIC));
+									} else {
+										checkerInstructions.append(InstructionConstants.DUP);
+										checkerInstructions.append(new PUSH(cpg, autName.getAutomataID()));
+										checkerInstructions.append(instrFactory.createInvoke(runtimeMonitor, reportFunction, Type.VOID, new Type[] { Type.STRING, Type.STRING }, Constants.INVOKESTATIC));
+									}
 									il.insert(currHandle, checkerInstructions);
-									instrHotspotCount++;
+									instrHotspotCount.incrementAndGet();
 								} else {
-									optHotspotCount++;
+									optHotspotCount.incrementAndGet();
 								}
+							} else if (signature.equals(bcelExecuteBatchSig) || signature.equals(bcelExecuteLargeBatchSig) || signature.equals(bcelClearBatchSig)) {
+								InstructionList batchInstructions = new InstructionList();
+								batchInstructions.append(InstructionConstants.DUP);
+								batchInstructions.append(instrFactory.createInvoke(runtimeMonitor, signature.equals(bcelClearBatchSig) ? clearBatchFunction : reportBatchFunction,
+										Type.VOID, new Type[] { STATEMENT_TYPE }, Constants.INVOKESTATIC));
+								il.insert(currHandle, batchInstructions);
 							}
 						}    
 					}
@@ -251,6 +356,21 @@ public class amnesia {
 	}
 
 
+	public static void writeAut(String filename, HotspotModel model, boolean serialized) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(filename));
+		try {
+			if (serialized) {
+				ObjectOutputStream objectOut = new ObjectOutputStream(out);
+				objectOut.writeObject(model);
+				objectOut.flush();
+			} else {
+				HotspotModelIO.write(model, out);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
 	public static void writeGraph(String filename, String graph) {
 		try {
 			FileWriter outputFile=new FileWriter(filename);
@@ -0,0 +1,39 @@
+package edu.usc.sql.amnesia.exceptions;
+
+/**
+ * Thrown when one or more queries of a batch are attacks. The batch is
+ * checked as a whole, so all the offending queries are reported at once.
+ */
+public class SQLIABatchException extends SQLIAException {
+
+    private static final long serialVersionUID=1L;
+	private int[] indices;
+	private String[] queries;
+
+	/**
+	 * @param indices positions of the offending queries in the batch, in order
+	 * @param queries the offending queries, in the same order
+	 */
+	public SQLIABatchException (int[] indices, String[] queries) {
+		super(queries[0]);
+		this.indices=indices;
+		this.queries=queries;
+	}
+
+	public int[] getIndices() {
+		return indices;
+	}
+
+	public String[] getQueries() {
+		return queries;
+	}
+
+	public String getMessage() {
+		StringBuilder message = new StringBuilder();
+		message.append(indices.length).append(" offending queries in batch at");
+		for (int i=0; i<indices.length; i++) {
+			message.append(i == 0 ? " " : ", ").append(indices[i]);
+		}
+		return message.toString();
+	}
+}
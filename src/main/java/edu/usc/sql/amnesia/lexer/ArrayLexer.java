@@ -0,0 +1,11 @@
+package edu.usc.sql.amnesia.lexer;
+
+/**
+ * Lexer that writes its tokens into a caller supplied LexedQuery instead of
+ * building LexicalToken objects. Implementations keep no per-query state,
+ * so one instance can be shared by all threads.
+ */
+public interface ArrayLexer {
+
+   public abstract void lexQuery(String s, LexedQuery tokens) throws SQLLexerException;
+}
@@ -13,21 +13,20 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import edu.usc.sql.models.QueryToken;
 import edu.usc.sql.models.TokenTransition;
 
-public class GenericLexer implements Lexer {
+public class GenericLexer implements Lexer, ArrayLexer, StreamingLexer {
     QueryToken initialState;
     private static Set ops, keywords;
-    protected String queryText="";
-    
-    private List tokens = new ArrayList();
+    private static boolean[] asciiOps = new boolean[128];
+    protected volatile String queryText="";
     
     static {
         String text;
@@ -53,6 +52,13 @@ public class GenericLexer implements Lexer {
         } catch (IOException ioe) {
             ioe.printStackTrace();
         }
+        Iterator it = ops.iterator();
+        while (it.hasNext()) {
+            String op = (String)it.next();
+            if (op.length() == 1 && op.charAt(0) < asciiOps.length) {
+                asciiOps[op.charAt(0)] = true;
+            }
+        }
     }
     
     public String getLexedQueryString() {
@@ -60,65 +66,108 @@ public class GenericLexer implements Lexer {
     }
     
     public List lexQuery(String queryString) throws SQLLexerException {
-        String currLabel="";
+        LexedQuery tokens = new LexedQuery();
+        lexQuery(queryString, tokens);
         queryText = queryString;
-        int currTokenType=TokenTransition.NONE;
+        return tokens.toList();
+    }
+
+    public void lexQuery(String queryString, LexedQuery tokens) throws SQLLexerException {
+        tokens.reset(queryString);
+        scan(queryString, tokens);
+    }
+
+    public boolean scan(String queryString, TokenSink tokens) throws SQLLexerException {
         boolean foundSlash=false;
         boolean inQuote=false;
-        tokens.clear();
+        //region of the current label and its number of characters
+        int labelStart=-1;
+        int labelChars=0;
+        //only used when the label is not its region verbatim
+        StringBuilder label=null;
+        int length=queryString.length();
         
-        for (int i=0; i<queryString.length(); i++) {
+        for (int i=0; i<length; i++) {
             char c = queryString.charAt(i);
             
-                        
             if ((c == '\\') && (inQuote) && !foundSlash) {
+                if (labelStart == -1) {
+                    labelStart=i;
+                }
+                if (label == null) {
+                    label = new StringBuilder().append(queryString, labelStart, i);
+                }
                 foundSlash=true;
                 continue;
             } 
             if ((c=='\'') && !foundSlash) {
                 if (inQuote) {
-                	if (!currLabel.equals("")) {
-	                    LexicalToken ltText= new LexicalToken(currLabel, TokenTransition.SCONSTANT, i-1);
-	                    tokens.add(ltText);
-	                    currLabel="";
-                	}
-                    LexicalToken ltQuote = new LexicalToken("'", TokenTransition.QUOTE, i);
-                    tokens.add(ltQuote);
+                    if (!addLabel(tokens, labelStart, i, labelChars, label)) {
+                        return false;
+                    }
+                    labelStart=-1;
+                    labelChars=0;
+                    label=null;
+                    if (!tokens.token(TokenTransition.QUOTE, i, 1, null)) {
+                        return false;
+                    }
                     inQuote=false;
-                    currTokenType=TokenTransition.QUOTE;
                 } else {
-                    LexicalToken ltQuote = new LexicalToken("'", TokenTransition.QUOTE, i);
-                    tokens.add(ltQuote);
+                    if (!tokens.token(TokenTransition.QUOTE, i, 1, null)) {
+                        return false;
+                    }
+                    //the label before the quote continues inside the quotes
+                    if (labelChars > 0 && label == null) {
+                        label = new StringBuilder().append(queryString, labelStart, i);
+                    }
                     inQuote=true;
-                    currTokenType=TokenTransition.TEXTFIELD;
                 }
             } else {
                 if (inQuote && c != '%') {
-                    currLabel+=String.valueOf(c);
-                    currTokenType=TokenTransition.TEXTFIELD;
+                    if (labelStart == -1) {
+                        labelStart=i;
+                    }
+                    labelChars++;
+                    if (label != null) {
+                        label.append(c);
+                    }
                     if (c=='\'') {foundSlash=false;}
-                } else if (ops.contains(String.valueOf(c))) {
-                    if (currTokenType==TokenTransition.TEXTFIELD) {
-                    	if (!currLabel.equals("")) {
-	                    	LexicalToken ltText= new LexicalToken(currLabel, TokenTransition.SCONSTANT, i-1);
-	                        tokens.add(ltText);
-	                        currLabel="";
-                    	}
+                } else if (isOp(c)) {
+                    if (!addLabel(tokens, labelStart, i, labelChars, label)) {
+                        return false;
+                    }
+                    labelStart=-1;
+                    labelChars=0;
+                    label=null;
+                    if (!tokens.token(TokenTransition.OP, i, 1, null)) {
+                        return false;
                     }
-                    LexicalToken lt = new LexicalToken(String.valueOf(c), TokenTransition.OP, i);
-                    tokens.add(lt);
-                    currTokenType=TokenTransition.OP;
                 } else {
-                    currLabel+=String.valueOf(c);
-                    currTokenType=TokenTransition.TEXTFIELD;
+                    if (labelStart == -1) {
+                        labelStart=i;
+                    }
+                    labelChars++;
+                    if (label != null) {
+                        label.append(c);
+                    }
                 }
             }
         }
-        if (currLabel.length()>0 && currTokenType==TokenTransition.TEXTFIELD) {
-        	LexicalToken lt = new LexicalToken(currLabel, TokenTransition.SCONSTANT, queryString.length()-1);
-        	tokens.add(lt);
+        return addLabel(tokens, labelStart, length, labelChars, label);
+    }
+
+    private static boolean addLabel(TokenSink tokens, int start, int end, int labelChars, StringBuilder label) {
+        if (labelChars > 0) {
+            return tokens.token(TokenTransition.SCONSTANT, start, end-start, label == null ? null : label.toString());
+        }
+        return true;
+    }
+
+    private static boolean isOp(char c) {
+        if (c < asciiOps.length) {
+            return asciiOps[c];
         }
-        return tokens;
+        return ops.contains(String.valueOf(c));
     }
 
 }
@@ -0,0 +1,149 @@
+package edu.usc.sql.amnesia.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.usc.sql.models.SymbolTable;
+import edu.usc.sql.models.TokenTransition;
+
+/**
+ * Tokens of a lexed query stored as parallel primitive arrays: token type,
+ * start offset and length of the region of the query string that produced
+ * the token. The arrays are reused between queries, so a LexedQuery should
+ * be owned by one thread at a time.
+ *
+ * For most tokens the label is exactly the region of the query. Tokens
+ * whose label differs from their region (string constants with escaped
+ * characters) carry their label explicitly.
+ */
+public class LexedQuery implements TokenSink {
+	private static final int INITIAL_CAPACITY = 32;
+
+	private String query = "";
+	private int size = 0;
+	private int[] types = new int[INITIAL_CAPACITY];
+	private int[] starts = new int[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private String[] labels = new String[INITIAL_CAPACITY];
+	//symbol of each label, 0 until looked up
+	private int[] symbols = new int[INITIAL_CAPACITY];
+	private boolean hasLabels = false;
+
+	public void reset(String queryString) {
+		if (hasLabels) {
+			Arrays.fill(labels, 0, size, null);
+			hasLabels = false;
+		}
+		query = queryString;
+		size = 0;
+	}
+
+	public void add(int type, int start, int length) {
+		if (size == types.length) {
+			grow();
+		}
+		types[size] = type;
+		starts[size] = start;
+		lengths[size] = length;
+		symbols[size] = 0;
+		size++;
+	}
+
+	public void add(int type, int start, int length, String label) {
+		add(type, start, length);
+		labels[size-1] = label;
+		hasLabels = true;
+	}
+
+	public boolean token(int type, int start, int length, String label) {
+		if (label == null) {
+			add(type, start, length);
+		} else {
+			add(type, start, length, label);
+		}
+		return true;
+	}
+
+	private void grow() {
+		int capacity = types.length*2;
+		types = Arrays.copyOf(types, capacity);
+		starts = Arrays.copyOf(starts, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+		labels = Arrays.copyOf(labels, capacity);
+		symbols = Arrays.copyOf(symbols, capacity);
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getType(int i) {
+		return types[i];
+	}
+
+	public int getStart(int i) {
+		return starts[i];
+	}
+
+	public int getLength(int i) {
+		return lengths[i];
+	}
+
+	/** Returns true if the label of token i is exactly its region of the query. */
+	public boolean isVerbatim(int i) {
+		return labels[i] == null;
+	}
+
+	public String getLabel(int i) {
+		if (labels[i] != null) {
+			return labels[i];
+		}
+		return query.substring(starts[i], starts[i]+lengths[i]);
+	}
+
+	/** Returns the symbol of the label of token i, or SymbolTable.NO_SYMBOL. */
+	public int getSymbol(int i) {
+		int symbol = symbols[i];
+		if (symbol == 0) {
+			if (labels[i] != null) {
+				symbol = SymbolTable.lookup(labels[i]);
+			} else {
+				symbol = SymbolTable.lookup(query, starts[i], lengths[i]);
+			}
+			symbols[i] = symbol;
+		}
+		return symbol;
+	}
+
+	public boolean labelEqualsIgnoreCase(int i, String label) {
+		if (labels[i] != null) {
+			return labels[i].equalsIgnoreCase(label);
+		}
+		return lengths[i] == label.length() && query.regionMatches(true, starts[i], label, 0, lengths[i]);
+	}
+
+	/** Returns the index of the token in the query string, as in LexicalToken. */
+	public int getStringIndex(int i) {
+		if (types[i] == TokenTransition.SCONSTANT) {
+			return starts[i]+lengths[i]-1;
+		}
+		return starts[i];
+	}
+
+	public List<LexicalToken> toList() {
+		List<LexicalToken> tokens = new ArrayList<LexicalToken>(size);
+		for (int i=0; i<size; i++) {
+			tokens.add(new LexicalToken(getLabel(i), types[i], getStringIndex(i)));
+		}
+		return tokens;
+	}
+
+	public String toString() {
+		return toList().toString();
+	}
+}
@@ -9,11 +9,14 @@
  */
 package edu.usc.sql.amnesia.lexer;
 
+import edu.usc.sql.models.SymbolTable;
+
 public class LexicalToken {
 
     private String label;
     private int type;
     private int strIndex;
+    private int symbol=0;
     
     public LexicalToken(String l, int t, int sI) {
         label=l;
@@ -32,6 +35,14 @@ public class LexicalToken {
     public int getStringIndex() {
         return strIndex;
     }
+
+    /** Symbol of the label, looked up once. */
+    public int getSymbol() {
+        if (symbol == 0) {
+            symbol = SymbolTable.lookup(label);
+        }
+        return symbol;
+    }
     
     public String toString() {
     	return label;
@@ -0,0 +1,15 @@
+package edu.usc.sql.amnesia.lexer;
+
+/**
+ * Lexer that hands each token to a TokenSink as soon as it is complete, so
+ * that the consumer can stop the scan without the rest of the query ever
+ * being tokenized.
+ */
+public interface StreamingLexer {
+
+   /**
+    * Returns true if the whole query was scanned, false if the sink
+    * stopped the scan.
+    */
+   public abstract boolean scan(String s, TokenSink sink) throws SQLLexerException;
+}
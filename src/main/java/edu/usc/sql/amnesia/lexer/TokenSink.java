@@ -0,0 +1,15 @@
+package edu.usc.sql.amnesia.lexer;
+
+/**
+ * Receives the tokens of a query as a StreamingLexer finds them.
+ */
+public interface TokenSink {
+
+   /**
+    * Called for each token, in order. The label of the token is the region
+    * [start, start+length) of the query, unless label is not null.
+    *
+    * @return false to stop lexing the query
+    */
+   public abstract boolean token(int type, int start, int length, String label);
+}
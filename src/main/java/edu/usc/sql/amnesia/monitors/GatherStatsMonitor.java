@@ -13,20 +13,38 @@ import edu.usc.sql.models.HotspotModel;
 import edu.usc.sql.amnesia.exceptions.AmnesiaException;
 import edu.usc.sql.amnesia.exceptions.SQLIAException;
 import edu.usc.sql.amnesia.exceptions.UndetectedSQLIAException;
+import edu.usc.sql.amnesia.util.AmnesiaConstants;
 
 public class GatherStatsMonitor extends Monitor {
 
-    private static int truePositive=0, falsePositive=0, trueNegative=0, falseNegative=0;
-    private static int queryCount=0;
+    //counted in the monitor metrics, or in a private instance when they are disabled
+    private static MonitorMetrics stats = metrics != null ? metrics : new MonitorMetrics();
 
-    
+    static {
+        stats.addSection(new MonitorMetrics.Section() {
+            public String snapshot() {
+                return getStats();
+            }
+        });
+        //published on their own when the monitor metrics are disabled
+        if (metrics == null) {
+            try {
+                stats.register();
+            } catch (Exception e) {
+                errorLog.warning("Could not register the metrics MBean: " + e.getMessage());
+            }
+            long period = getLongProperty(AmnesiaConstants.PROP_METRICS_SNAPSHOT, DEFAULT_SNAPSHOT_INTERVAL);
+            if (period > 0) {
+                stats.scheduleSnapshots(period, statsLog);
+            }
+        }
+    }
     
     public static void report(String queryString, String id) throws Exception {
         
         boolean status=false;
         boolean isIdentifiedAttack=false;
-        queryCount++;
-        outputStats();
+        stats.countStatsQuery();
         
         if (queryString.indexOf("~~~") != -1) { isIdentifiedAttack=true;}
         String[] queryArray = queryString.split("~~~");
@@ -46,23 +64,18 @@ public class GatherStatsMonitor extends Monitor {
             throw(new AmnesiaException());
         }
         else {
-            status=aut.accepts(queryString, dbLexer);
+            status=check(id, aut, queryString);
+            stats.countVerdict(isIdentifiedAttack, status);
             if (status) {
                 if (isIdentifiedAttack) {
-                    falseNegative++;
-                    sqliaLog.warning(now.getTime() + ":" + id + " false negative: " + queryString);
+                    logSQLIA("false negative", id, queryString, null);
                     
                     throw(new UndetectedSQLIAException());
-                } else {
-                    trueNegative++;
                 }
             } else {
-                if (isIdentifiedAttack) {
-                    truePositive++;                
-                } else {
+                if (!isIdentifiedAttack) {
                     //false positive
-                    falsePositive++;
-                    sqliaLog.warning(now.getTime() + ":" + id + " false positive: " + queryString);
+                    logSQLIA("false positive", id, queryString, null);
                   
                 }
                 throw(new SQLIAException(queryString));
@@ -71,13 +84,13 @@ public class GatherStatsMonitor extends Monitor {
     }
     
     public static void outputStats() {
-        Calendar now= Calendar.getInstance();
-        sqliaLog.warning(now.getTime().toString());
-        sqliaLog.warning("Total Queries: " + queryCount);
-        sqliaLog.warning("False Postives: " + falsePositive);
-        sqliaLog.warning("False Negatives: " + falseNegative);
-        sqliaLog.warning("True Positives: " + truePositive);
-        sqliaLog.warning("True Negatives: " + trueNegative);
+        statsLog.info(getStats());
+    }
+
+    public static String getStats() {
+        return "Total Queries: " + stats.getStatsQueries() + " False Positives: " + stats.getFalsePositives()
+            + " False Negatives: " + stats.getFalseNegatives() + " True Positives: " + stats.getTruePositives()
+            + " True Negatives: " + stats.getTrueNegatives();
     }
 
     
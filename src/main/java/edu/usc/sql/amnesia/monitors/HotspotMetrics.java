@@ -0,0 +1,108 @@
+package edu.usc.sql.amnesia.monitors;
+
+/**
+ * Counters and latencies of the checks of one hotspot. Checks that lex and
+ * match in a single pass only have a total latency.
+ */
+public class HotspotMetrics {
+    private final String id;
+    private final StripedCounter checks = new StripedCounter();
+    private final StripedCounter accepts = new StripedCounter();
+    private final StripedCounter rejections = new StripedCounter();
+    private final StripedCounter lexerErrors = new StripedCounter();
+    private final StripedCounter cacheHits = new StripedCounter();
+    private final LatencyHistogram lexLatency = new LatencyHistogram();
+    private final LatencyHistogram matchLatency = new LatencyHistogram();
+    private final LatencyHistogram checkLatency = new LatencyHistogram();
+
+    public HotspotMetrics(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Records a check whose query was lexed in lexNanos and matched in
+     * matchNanos; verdict is one of the VerdictCache constants.
+     */
+    public void record(int verdict, long lexNanos, long matchNanos) {
+        count(verdict);
+        lexLatency.record(lexNanos);
+        matchLatency.record(matchNanos);
+        checkLatency.record(lexNanos+matchNanos);
+    }
+
+    /** Records a check whose query was lexed and matched in one pass. */
+    public void recordFused(int verdict, long nanos) {
+        count(verdict);
+        checkLatency.record(nanos);
+    }
+
+    private void count(int verdict) {
+        checks.increment();
+        if (verdict == VerdictCache.REJECTED) {
+            rejections.increment();
+        } else {
+            accepts.increment();
+            if (verdict == VerdictCache.CACHED) {
+                cacheHits.increment();
+            }
+        }
+    }
+
+    public void recordLexerError() {
+        checks.increment();
+        lexerErrors.increment();
+    }
+
+    public String getID() {
+        return id;
+    }
+
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    public long getAccepts() {
+        return accepts.sum();
+    }
+
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public long getLexerErrors() {
+        return lexerErrors.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public LatencyHistogram getLexLatency() {
+        return lexLatency;
+    }
+
+    public LatencyHistogram getMatchLatency() {
+        return matchLatency;
+    }
+
+    public LatencyHistogram getCheckLatency() {
+        return checkLatency;
+    }
+
+    public void reset() {
+        checks.reset();
+        accepts.reset();
+        rejections.reset();
+        lexerErrors.reset();
+        cacheHits.reset();
+        lexLatency.reset();
+        matchLatency.reset();
+        checkLatency.reset();
+    }
+
+    public String toString() {
+        return id + ": checks=" + getChecks() + " accepts=" + getAccepts() + " rejections=" + getRejections()
+            + " lexerErrors=" + getLexerErrors() + " cacheHits=" + getCacheHits()
+            + " check[" + checkLatency + "] lex[" + lexLatency + "] match[" + matchLatency + "]";
+    }
+}
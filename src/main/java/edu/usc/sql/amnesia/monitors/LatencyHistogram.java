@@ -0,0 +1,76 @@
+package edu.usc.sql.amnesia.monitors;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with power of two buckets: bucket
+ * i counts the values in [2^(i-1), 2^i). Recording is one atomic add, so
+ * percentiles are only known within a factor of two.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter total = new StripedCounter();
+
+    public void record(long nanos) {
+        int bucket = nanos <= 0 ? 0 : Math.min(BUCKETS-1, 64 - Long.numberOfLeadingZeros(nanos));
+        buckets.getAndIncrement(bucket);
+        total.add(nanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /** Sum of all the recorded latencies, in nanoseconds. */
+    public long getTotal() {
+        return total.sum();
+    }
+
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : getTotal()/count;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile (0 to 100) of the
+     * recorded latencies, in nanoseconds.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return i == 0 ? 0 : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public void reset() {
+        for (int i=0; i<BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        total.reset();
+    }
+
+    public String toString() {
+        return "count=" + getCount() + " mean=" + getMean() + "ns p50<=" + getPercentile(50)
+            + "ns p99<=" + getPercentile(99) + "ns max<=" + getPercentile(100) + "ns";
+    }
+}
@@ -0,0 +1,228 @@
+package edu.usc.sql.amnesia.monitors;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.usc.sql.models.HotspotModel;
+
+/**
+ * Concurrent cache of hotspot models, bounded by number of models and/or by
+ * total weight (number of model states). When the bound is exceeded the
+ * least recently used models are evicted. Concurrent misses on the same
+ * hotspot share a single load.
+ */
+public class ModelCache {
+
+    public interface Loader {
+        public HotspotModel load(String id);
+    }
+
+    private static class Entry {
+        final HotspotModel model;
+        final long weight;
+        volatile long lastAccess;
+
+        Entry(HotspotModel model, long weight) {
+            this.model = model;
+            this.weight = weight;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    private final Loader loader;
+    private final long maxModels;
+    private final long maxWeight;
+
+    private final ConcurrentHashMap<String, Entry> models = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, FutureTask<HotspotModel>> loading = new ConcurrentHashMap<String, FutureTask<HotspotModel>>();
+    private final Object evictionLock = new Object();
+
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxModels maximum number of cached models, 0 for no limit
+     * @param maxWeight maximum total number of states of the cached models, 0 for no limit
+     */
+    public ModelCache(Loader loader, long maxModels, long maxWeight) {
+        this.loader = loader;
+        this.maxModels = maxModels;
+        this.maxWeight = maxWeight;
+    }
+
+    public HotspotModel get(final String id) {
+        Entry e = models.get(id);
+        if (e != null) {
+            e.lastAccess = System.nanoTime();
+            hits.incrementAndGet();
+            return e.model;
+        }
+        misses.incrementAndGet();
+
+        FutureTask<HotspotModel> task = loading.get(id);
+        if (task == null) {
+            FutureTask<HotspotModel> newTask = new FutureTask<HotspotModel>(new Callable<HotspotModel>() {
+                public HotspotModel call() {
+                    return load(id);
+                }
+            });
+            task = loading.putIfAbsent(id, newTask);
+            if (task == null) {
+                task = newTask;
+                newTask.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        }
+    }
+
+    private HotspotModel load(String id) {
+        try {
+            //another thread may have finished loading it since our miss
+            Entry e = models.get(id);
+            if (e != null) {
+                return e.model;
+            }
+            long start = System.nanoTime();
+            HotspotModel model;
+            try {
+                model = loader.load(id);
+            } catch (RuntimeException re) {
+                loadFailures.incrementAndGet();
+                throw re;
+            }
+            loadTime.addAndGet(System.nanoTime()-start);
+            loads.incrementAndGet();
+            put(id, model);
+            return model;
+        } finally {
+            loading.remove(id);
+        }
+    }
+
+    public void put(String id, HotspotModel model) {
+        Entry e = new Entry(model, Math.max(1, model.getNumberOfStates()));
+        Entry old = models.put(id, e);
+        weight.addAndGet(e.weight - (old == null ? 0 : old.weight));
+        if (overLimit(0)) {
+            evict(e);
+        }
+    }
+
+    /** True if the cache has reached one of its bounds. */
+    public boolean isFull() {
+        return (maxModels > 0 && models.size() >= maxModels) || (maxWeight > 0 && weight.get() >= maxWeight);
+    }
+
+    private boolean overLimit(long slack) {
+        return (maxModels > 0 && models.size() > maxModels - slack) || (maxWeight > 0 && weight.get() > maxWeight - slack);
+    }
+
+    //evicts the least recently used models other than the one just inserted,
+    //down to 7/8th of the bounds so that a burst of misses does not sort the
+    //cache on every insertion. Bounds under 8 are kept exactly.
+    private void evict(Entry inserted) {
+        synchronized (evictionLock) {
+            if (!overLimit(0)) {
+                return;
+            }
+            @SuppressWarnings("unchecked")
+            Map.Entry<String, Entry>[] entries = models.entrySet().toArray(new Map.Entry[0]);
+            final long[] stamps = new long[entries.length];
+            Integer[] order = new Integer[entries.length];
+            for (int i=0; i<entries.length; i++) {
+                stamps[i] = entries[i].getValue().lastAccess;
+                order[i] = Integer.valueOf(i);
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    long diff = stamps[a.intValue()] - stamps[b.intValue()];
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            long slack = maxModels/8;
+            long weightSlack = maxWeight/8;
+            for (int i=0; i<order.length; i++) {
+                boolean over = (maxModels > 0 && models.size() > maxModels - slack) || (maxWeight > 0 && weight.get() > maxWeight - weightSlack);
+                if (!over) {
+                    break;
+                }
+                Map.Entry<String, Entry> victim = entries[order[i].intValue()];
+                if (victim.getValue() == inserted) {
+                    continue;
+                }
+                if (models.remove(victim.getKey(), victim.getValue())) {
+                    weight.addAndGet(-victim.getValue().weight);
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (evictionLock) {
+            models.clear();
+            weight.set(0);
+        }
+    }
+
+    public int size() {
+        return models.size();
+    }
+
+    public long getWeight() {
+        return weight.get();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailures.get();
+    }
+
+    /** Total time spent loading models, in nanoseconds. */
+    public long getTotalLoadTime() {
+        return loadTime.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public String toString() {
+        return "models=" + size() + " weight=" + getWeight() + " hits=" + getHitCount() + " misses=" + getMissCount()
+            + " loads=" + getLoadCount() + " loadFailures=" + getLoadFailureCount()
+            + " loadTime=" + (getTotalLoadTime()/1000000) + "ms evictions=" + getEvictionCount();
+    }
+}
@@ -0,0 +1,204 @@
+package edu.usc.sql.amnesia.monitors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import edu.usc.sql.amnesia.lexer.LexedQuery;
+import edu.usc.sql.amnesia.util.AmnesiaConstants;
+import edu.usc.sql.models.HotspotModel;
+import edu.usc.sql.models.ModelPack;
+import edu.usc.sql.models.Token;
+import edu.usc.sql.models.TokenTransition;
+
+/**
+ * Loads every model of the model pack and of the aut directory on a bounded
+ * thread pool, compiles their token automata and optionally runs a few
+ * synthetic queries through the lexer and matcher so that the first real
+ * queries do not pay for loading, compilation and JIT warm-up.
+ *
+ * Models are loaded through the model cache, under their hotspot ID, so
+ * the first query for a hotspot finds its model there. The IDs of the .aut
+ * files are taken from the index the analysis writes next to them, as they
+ * cannot be recovered from the file names (class names may end with
+ * digits); without an index .aut models are loaded on first use. Preloading
+ * stops once the cache is full.
+ */
+public class ModelPreloader {
+    private static final int MAX_WALK = 200;
+
+    private final ModelCache cache;
+    private final ModelPack pack;
+    private final File autDir;
+    private final int threads;
+    private final int warmupQueries;
+    private final Logger log;
+
+    private final Map<String, Long> loadTimes = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private long totalTime;
+
+    /**
+     * @param autDir directory of the .aut files, null to only load the pack
+     * @param warmupQueries number of synthetic queries matched against each model
+     */
+    public ModelPreloader(ModelCache cache, ModelPack pack, File autDir, int threads, int warmupQueries, Logger log) {
+        this.cache = cache;
+        this.pack = pack;
+        this.autDir = autDir;
+        this.threads = Math.max(1, threads);
+        this.warmupQueries = warmupQueries;
+        this.log = log;
+    }
+
+    public void run() {
+        long start = System.nanoTime();
+        //a hotspot in both is loaded from the pack, as by the monitor
+        Set<String> ids = new LinkedHashSet<String>();
+        if (pack != null) {
+            ids.addAll(pack.getIDs());
+        }
+        if (autDir != null) {
+            ids.addAll(readIndex());
+        }
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final String id:ids) {
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    if (cache.isFull()) {
+                        return null;
+                    }
+                    long t = System.nanoTime();
+                    HotspotModel model = cache.get(id);
+                    prepare(id, model, t);
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, tasks.size())), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "amnesia-preload-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<Object>> results = pool.invokeAll(tasks);
+            for (Future<Object> result:results) {
+                try {
+                    result.get();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    log.warning("Could not preload model: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        totalTime = System.nanoTime() - start;
+        log.info("Preloaded " + loadTimes.size() + " models in " + (totalTime/1000000) + "ms ("
+            + failures.get() + " failures, " + threads + " threads, " + warmupQueries + " warm-up queries per model)");
+    }
+
+    //hotspot IDs listed in the index of the aut directory, none without an index
+    private List<String> readIndex() {
+        List<String> ids = new ArrayList<String>();
+        File index = new File(autDir, AmnesiaConstants.AUT_INDEX_FILE);
+        if (!index.isFile()) {
+            log.info("No " + index.getName() + " in " + autDir + ", .aut models are loaded on first use");
+            return ids;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    if (tab != -1) {
+                        ids.add(line.substring(tab+1));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            log.warning("Could not read " + index + ": " + e.getMessage());
+        }
+        return ids;
+    }
+
+    private void prepare(String name, HotspotModel model, long start) throws Exception {
+        model.getTokenAutomaton();
+        long loaded = System.nanoTime();
+        if (warmupQueries > 0) {
+            warmup(model, name.hashCode());
+        }
+        loadTimes.put(name, Long.valueOf(loaded - start));
+        log.fine("Preloaded " + name + ": " + model.getNumberOfStates() + " states, loaded in "
+            + ((loaded-start)/1000) + "us, warmed up in " + ((System.nanoTime()-loaded)/1000) + "us");
+    }
+
+    //matches queries built from random paths of the model, accepted or not
+    private void warmup(HotspotModel model, long seed) throws Exception {
+        Random random = new Random(seed);
+        for (int i=0; i<warmupQueries; i++) {
+            StringBuilder query = new StringBuilder();
+            Token t = model.getInitialState();
+            for (int step=0; step<MAX_WALK; step++) {
+                Set out = t.getOutTransitions();
+                if (out.isEmpty() || (t.isAccept() && random.nextInt(4) == 0)) {
+                    break;
+                }
+                int k = random.nextInt(out.size());
+                TokenTransition tt = null;
+                for (Object o:out) {
+                    tt = (TokenTransition)o;
+                    if (k-- == 0) {
+                        break;
+                    }
+                }
+                query.append(tt.getType() == TokenTransition.VAR ? "1" : tt.getLabel());
+                t = tt.getDest();
+            }
+            LexedQuery tokens = Monitor.lex(query.toString());
+            model.accepts(tokens);
+            model.accepts(tokens.toList());
+        }
+    }
+
+    /** Total time of the last run, in nanoseconds. */
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    /** Load and compilation time of each preloaded model, in nanoseconds. */
+    public Map<String, Long> getLoadTimes() {
+        return Collections.unmodifiableMap(loadTimes);
+    }
+
+    public int getFailureCount() {
+        return failures.get();
+    }
+}
@@ -7,30 +7,72 @@
  */
 package edu.usc.sql.amnesia.monitors;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.net.URL;
-import java.util.HashMap;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import edu.usc.sql.models.HotspotModel;
+import edu.usc.sql.models.HotspotModelIO;
+import edu.usc.sql.models.ModelPack;
 import edu.usc.sql.amnesia.config.AnalysisProperties;
 import edu.usc.sql.amnesia.exceptions.AnalysisPropertiesException;
+import edu.usc.sql.amnesia.exceptions.SQLIABatchException;
+import edu.usc.sql.amnesia.lexer.ArrayLexer;
 import edu.usc.sql.amnesia.lexer.GenericLexer;
+import edu.usc.sql.amnesia.lexer.LexedQuery;
 import edu.usc.sql.amnesia.lexer.Lexer;
+import edu.usc.sql.amnesia.lexer.SQLLexerException;
+import edu.usc.sql.amnesia.lexer.StreamingLexer;
 import edu.usc.sql.amnesia.util.AmnesiaConstants;
 import edu.usc.sql.amnesia.util.AutomataName;
 
 abstract public class Monitor {
  
 	protected static AnalysisProperties properties;
-    protected static Map<String, HotspotModel> autMap = new HashMap<String, HotspotModel>();
+    protected static ModelCache autCache;
+    protected static VerdictCache verdictCache;
+    protected static MonitorMetrics metrics;
+    protected static SQLIAEventLog sqliaEvents;
     protected static Lexer dbLexer=new GenericLexer();
+    protected static ArrayLexer arrayLexer=new GenericLexer();
+    protected static StreamingLexer streamingLexer=new GenericLexer();
+    protected static boolean streaming=true;
+    private static ThreadLocal<LexedQuery> lexedQueries = new ThreadLocal<LexedQuery>() {
+    	protected LexedQuery initialValue() {
+    		return new LexedQuery();
+    	}
+    };
     protected static String DIR_AUT;
+    protected static ModelPack autPack;
+    //queries added to the batch of each statement, until it is executed or cleared
+    private static Map<Statement, List<String[]>> pendingBatches = Collections.synchronizedMap(new WeakHashMap<Statement, List<String[]>>());
+    private static int batchThreads=1;
+    private static int batchParallelMin=256;
+    private static ExecutorService batchPool;
+    //seconds between two snapshots of the metrics in the stats log, 0 or less for none
+    protected static final long DEFAULT_SNAPSHOT_INTERVAL = 300;
     protected static Logger errorLog = Logger.getLogger("edu.usc.sql.amnesia.errors");
     protected static Logger sqliaLog = Logger.getLogger("edu.usc.sql.amnesia.sqlia");
+    protected static Logger statsLog = Logger.getLogger("edu.usc.sql.amnesia.stats");
 
     static { 
         URL propertyFileURL;
@@ -42,6 +84,78 @@ abstract public class Monitor {
         	}
     		properties.load(propertyFileURL.getPath());
             DIR_AUT = properties.getProperty(AmnesiaConstants.PROP_DIR_AUT);
+            autCache = new ModelCache(new ModelCache.Loader() {
+            	public HotspotModel load(String id) {
+            		return loadAut(id);
+            	}
+            }, getLongProperty(AmnesiaConstants.PROP_CACHE_MAX_MODELS, 0), getLongProperty(AmnesiaConstants.PROP_CACHE_MAX_WEIGHT, 0));
+            streaming = !"false".equalsIgnoreCase(properties.getProperty(AmnesiaConstants.PROP_CHECK_STREAMING));
+            batchThreads = (int)getLongProperty(AmnesiaConstants.PROP_BATCH_THREADS, Runtime.getRuntime().availableProcessors());
+            batchParallelMin = (int)getLongProperty(AmnesiaConstants.PROP_BATCH_PARALLEL_MIN, batchParallelMin);
+            int verdicts = (int)getLongProperty(AmnesiaConstants.PROP_CACHE_VERDICTS, 0);
+            if (verdicts > 0) {
+            	verdictCache = new VerdictCache(verdicts);
+            }
+            if (!"false".equalsIgnoreCase(properties.getProperty(AmnesiaConstants.PROP_METRICS))) {
+            	metrics = new MonitorMetrics();
+            	try {
+            		metrics.register();
+            	} catch (Exception e) {
+            		errorLog.warning("Could not register the metrics MBean: " + e.getMessage());
+            	}
+            	long period = getLongProperty(AmnesiaConstants.PROP_METRICS_SNAPSHOT, DEFAULT_SNAPSHOT_INTERVAL);
+            	if (period > 0) {
+            		metrics.scheduleSnapshots(period, statsLog);
+            	}
+            }
+            if (!"false".equalsIgnoreCase(properties.getProperty(AmnesiaConstants.PROP_EVENTS_ASYNC))) {
+            	String logDir = properties.getProperty(AmnesiaConstants.PROP_DIR_LOGS);
+            	File eventFile = null;
+            	if (logDir != null && logDir.trim().length() > 0) {
+            		File dir = new File(logDir.trim());
+            		dir.mkdirs();
+            		eventFile = new File(dir, AmnesiaConstants.SQLIA_EVENT_FILE);
+            	}
+            	String policy = properties.getProperty(AmnesiaConstants.PROP_EVENTS_OVERFLOW);
+            	sqliaEvents = new SQLIAEventLog((int)getLongProperty(AmnesiaConstants.PROP_EVENTS_BUFFER, 8192),
+            			policy == null ? SQLIAEventLog.POLICY_DROP : policy.trim(),
+            			(int)getLongProperty(AmnesiaConstants.PROP_EVENTS_SAMPLE, 10), eventFile, sqliaLog);
+            	try {
+            		sqliaEvents.register();
+            	} catch (Exception e) {
+            		errorLog.warning("Could not register the SQLIA event log MBean: " + e.getMessage());
+            	}
+            	if (metrics != null) {
+            		metrics.addSection(new MonitorMetrics.Section() {
+            			public String snapshot() {
+            				return sqliaEvents.toString();
+            			}
+            		});
+            	}
+            }
+            String packName = properties.getProperty(AmnesiaConstants.PROP_AUT_PACK);
+            if (packName != null && packName.trim().length() > 0) {
+            	try {
+            		autPack = ModelPack.open(resolveAutFile(packName.trim()));
+            	} catch (IOException ioe) {
+            		errorLog.severe("Could not open model pack, falling back to .aut files: " + ioe.getMessage());
+            	} catch (RuntimeException re) {
+            		errorLog.severe("Could not open model pack, falling back to .aut files: " + re.getMessage());
+            	}
+            }
+            if (Boolean.valueOf(properties.getProperty(AmnesiaConstants.PROP_AUT_PRELOAD)).booleanValue()) {
+            	//models are loaded in the background, queries that arrive
+            	//before their model is ready load it as usual
+            	final int threads = (int)getLongProperty(AmnesiaConstants.PROP_AUT_PRELOAD_THREADS, Runtime.getRuntime().availableProcessors());
+            	final int warmup = (int)getLongProperty(AmnesiaConstants.PROP_AUT_PRELOAD_WARMUP, 0);
+            	Thread preloader = new Thread("amnesia-preload") {
+            		public void run() {
+            			preload(threads, warmup);
+            		}
+            	};
+            	preloader.setDaemon(true);
+            	preloader.start();
+            }
         } catch(AnalysisPropertiesException ape) {
         	String message = ape.getCause().toString() + " " + ape.getFileLocation();
         	errorLog.severe("Problem loading the edu.usc.sql.amnesia.properties file: " + message);
@@ -55,9 +169,46 @@ abstract public class Monitor {
     
     
     private static HotspotModel loadAut(String autID) {
+    	if (autPack != null && autPack.contains(autID)) {
+    		try {
+    			return autPack.get(autID);
+    		} catch (IOException ioe) {
+    			String message = ioe.getMessage() + " " + autID + " in " + autPack.getFile().getAbsolutePath();
+    			errorLog.severe(message);
+    			throw new RuntimeException(message);
+    		}
+    	}
+
     	AutomataName autName = new AutomataName(autID);
-    	File autFile = new File(DIR_AUT+File.separator+autName.getAutomataRegularPath());    	
+    	File autFile = resolveAutFile(autName.getAutomataRegularPath());
     	
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(autFile));
+            try {
+            	return readAut(in);
+            } finally {
+            	in.close();
+            }
+        } catch (Exception e) {
+        	String message = e.getMessage() + " " + autFile.getAbsolutePath();
+        	errorLog.severe(message);
+        	throw new RuntimeException(message);
+        } 
+    }
+
+    //reads either the binary model format or a serialized HotspotModel
+    static HotspotModel readAut(InputStream in) throws IOException, ClassNotFoundException {
+    	in.mark(4);
+    	int magic = new DataInputStream(in).readInt();
+    	in.reset();
+    	if (magic == HotspotModelIO.MAGIC) {
+    		return HotspotModelIO.read(in);
+    	}
+    	return (HotspotModel) new ObjectInputStream(in).readObject();
+    }
+
+    private static File resolveAutFile(String filename) {
+    	File autFile = new File(DIR_AUT+File.separator+filename);
     	if (!autFile.isAbsolute()) {
     		URL autFileURL = properties.getClass().getClassLoader().getResource(autFile.getPath());
     		if (autFileURL == null) {
@@ -67,27 +218,260 @@ abstract public class Monitor {
         	}
     		autFile = new File(autFileURL.getPath());
     	}
-    	
-        try {
-            ObjectInputStream in = new ObjectInputStream(new FileInputStream(autFile));
-            HotspotModel aut = (HotspotModel) in.readObject();
-            in.close();
-            autMap.put(autID, aut);
-            return aut;
-        } catch (Exception e) {
-        	String message = e.getMessage() + " " + autFile.getAbsolutePath();
-        	errorLog.severe(message);
-        	throw new RuntimeException(message);
-        } 
+    	return autFile;
     }
     
-    //TODO: autmap can get ridiculously large
+    /**
+     * Loads and compiles every model of the model pack and of the index of
+     * the aut directory using the given number of threads, and matches warmupQueries
+     * synthetic queries against each of them. Blocks until all models are
+     * loaded.
+     */
+    public static ModelPreloader preload(int threads, int warmupQueries) {
+    	File autDir = null;
+    	try {
+    		autDir = resolveAutFile("");
+    	} catch (RuntimeException re) {
+    		//no aut directory, only the pack is preloaded
+    	}
+    	ModelPreloader preloader = new ModelPreloader(autCache, autPack, autDir, threads, warmupQueries, statsLog);
+    	preloader.run();
+    	return preloader;
+    }
+
+    /**
+     * Called before Statement.addBatch(String): remembers the query until
+     * the batch of the statement is executed.
+     */
+    public static void batch(Statement statement, String queryString, String id) {
+    	synchronized (pendingBatches) {
+    		List<String[]> pending = pendingBatches.get(statement);
+    		if (pending == null) {
+    			pending = new ArrayList<String[]>();
+    			pendingBatches.put(statement, pending);
+    		}
+    		pending.add(new String[] {queryString, id});
+    	}
+    }
+
+    /** Called before Statement.clearBatch(). */
+    public static void clearBatch(Statement statement) {
+    	pendingBatches.remove(statement);
+    }
+
+    /**
+     * Called before Statement.executeBatch() and executeLargeBatch(): checks
+     * every query added to the batch of the statement since it was last
+     * executed or cleared. The queries are only forgotten once the batch is
+     * accepted, the statement still holds a rejected batch and executing it
+     * again checks it again.
+     */
+    public static void reportBatch(Statement statement) throws SQLIABatchException {
+    	String[] queries;
+    	String[] ids;
+    	synchronized (pendingBatches) {
+    		List<String[]> pending = pendingBatches.get(statement);
+    		if (pending == null) {
+    			return;
+    		}
+    		queries = new String[pending.size()];
+    		ids = new String[pending.size()];
+    		for (int i=0; i<queries.length; i++) {
+    			queries[i] = pending.get(i)[0];
+    			ids[i] = pending.get(i)[1];
+    		}
+    	}
+    	reportBatch(queries, ids);
+    	pendingBatches.remove(statement);
+    }
+
+    /**
+     * Checks a batch of queries, queries[i] being issued at hotspot ids[i].
+     * Large batches are split among the batch threads. A query that cannot
+     * be lexed counts as an attack, like a rejected one. All the offending
+     * queries are logged and reported in a single exception.
+     */
+    public static void reportBatch(final String[] queries, final String[] ids) throws SQLIABatchException {
+    	final boolean[] rejected = new boolean[queries.length];
+    	int chunks = queries.length < batchParallelMin ? 1 : Math.min(batchThreads, queries.length/Math.max(1, batchParallelMin/2));
+    	if (chunks <= 1) {
+    		checkBatch(queries, ids, 0, queries.length, rejected);
+    	} else {
+    		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    		for (int c=0; c<chunks; c++) {
+    			final int from = (int)((long)queries.length*c/chunks);
+    			final int to = (int)((long)queries.length*(c+1)/chunks);
+    			tasks.add(new Callable<Object>() {
+    				public Object call() {
+    					checkBatch(queries, ids, from, to, rejected);
+    					return null;
+    				}
+    			});
+    		}
+    		try {
+    			for (Future<Object> f:getBatchPool().invokeAll(tasks)) {
+    				f.get();
+    			}
+    		} catch (InterruptedException ie) {
+    			Thread.currentThread().interrupt();
+    			//do not let the batch through unchecked
+    			checkBatch(queries, ids, 0, queries.length, rejected);
+    		} catch (ExecutionException ee) {
+    			throw new RuntimeException(ee.getCause());
+    		}
+    	}
+    	int count = 0;
+    	for (int i=0; i<rejected.length; i++) {
+    		if (rejected[i]) {
+    			count++;
+    		}
+    	}
+    	if (count == 0) {
+    		return;
+    	}
+    	int[] indices = new int[count];
+    	String[] offending = new String[count];
+    	count = 0;
+    	for (int i=0; i<rejected.length; i++) {
+    		if (rejected[i]) {
+    			indices[count] = i;
+    			offending[count++] = queries[i];
+    			logSQLIA("SQLIA", ids[i], queries[i], null);
+    		}
+    	}
+    	throw new SQLIABatchException(indices, offending);
+    }
+
+    private static void checkBatch(String[] queries, String[] ids, int from, int to, boolean[] rejected) {
+    	String lastId = null;
+    	HotspotModel aut = null;
+    	for (int i=from; i<to; i++) {
+    		//batches mostly come from a single hotspot
+    		if (!ids[i].equals(lastId)) {
+    			lastId = ids[i];
+    			aut = getAut(lastId);
+    		}
+    		try {
+    			rejected[i] = !check(lastId, aut, queries[i]);
+    		} catch (SQLLexerException le) {
+    			rejected[i] = true;
+    		}
+    	}
+    }
+
+    private static synchronized ExecutorService getBatchPool() {
+    	if (batchPool == null) {
+    		batchPool = Executors.newFixedThreadPool(batchThreads, new ThreadFactory() {
+    			private final AtomicInteger count = new AtomicInteger();
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "amnesia-batch-" + count.incrementAndGet());
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	}
+    	return batchPool;
+    }
+
     public static HotspotModel getAut(String id) {
-        HotspotModel aut = (HotspotModel)autMap.get(id);
-        if (aut == null) {   
-            aut=loadAut(id);
-        }
-        return aut;
+        return autCache.get(id);
+    }
+
+    /**
+     * Lexes the query into the calling thread's token buffer. The result is
+     * only valid until the next call from the same thread.
+     */
+    protected static LexedQuery lex(String queryString) throws SQLLexerException {
+    	LexedQuery tokens = lexedQueries.get();
+    	arrayLexer.lexQuery(queryString, tokens);
+    	return tokens;
+    }
+
+    /**
+     * Returns true if the model accepts the query, going through the verdict
+     * cache when it is enabled, and records the check in the metrics.
+     * Without the verdict cache the query is lexed and matched in a single
+     * pass that stops at the first rejected token.
+     */
+    protected static boolean check(String id, HotspotModel aut, String queryString) throws SQLLexerException {
+    	HotspotMetrics m = metrics == null ? null : metrics.get(id);
+    	long start = m == null ? 0 : System.nanoTime();
+    	if (streaming && verdictCache == null) {
+    		boolean accepted;
+    		try {
+    			accepted = aut.matches(queryString, streamingLexer);
+    		} catch (SQLLexerException le) {
+    			if (m != null) {
+    				m.recordLexerError();
+    			}
+    			throw le;
+    		}
+    		if (m != null) {
+    			m.recordFused(accepted ? VerdictCache.ACCEPTED : VerdictCache.REJECTED, System.nanoTime()-start);
+    		}
+    		return accepted;
+    	}
+    	LexedQuery tokens;
+    	try {
+    		tokens = lex(queryString);
+    	} catch (SQLLexerException le) {
+    		if (m != null) {
+    			m.recordLexerError();
+    		}
+    		throw le;
+    	}
+    	long lexed = m == null ? 0 : System.nanoTime();
+    	int verdict;
+    	if (verdictCache != null) {
+    		verdict = verdictCache.check(id, aut, tokens);
+    	} else {
+    		verdict = aut.accepts(tokens) ? VerdictCache.ACCEPTED : VerdictCache.REJECTED;
+    	}
+    	if (m != null) {
+    		m.record(verdict, lexed-start, System.nanoTime()-lexed);
+    	}
+    	return verdict != VerdictCache.REJECTED;
+    }
+
+    /**
+     * Logs a detected attack, or a misclassified query. Unless the event log
+     * is disabled this only queues the event for the background writer.
+     */
+    protected static void logSQLIA(String kind, String id, String queryString, String detail) {
+    	if (sqliaEvents != null) {
+    		sqliaEvents.log(kind, id, queryString, detail);
+    	} else {
+    		sqliaLog.warning(kind + ": " + id + " <= " + queryString + (detail == null ? "" : " match: " + detail));
+    	}
+    }
+
+    public static SQLIAEventLog getSQLIAEventLog() {
+        return sqliaEvents;
+    }
+
+    public static MonitorMetrics getMetrics() {
+        return metrics;
+    }
+
+    public static VerdictCache getVerdictCache() {
+        return verdictCache;
+    }
+
+    public static ModelCache getModelCache() {
+        return autCache;
+    }
+
+    protected static long getLongProperty(String key, long defaultValue) {
+    	String value = properties.getProperty(key);
+    	if (value == null || value.trim().length() == 0) {
+    		return defaultValue;
+    	}
+    	try {
+    		return Long.parseLong(value.trim());
+    	} catch (NumberFormatException nfe) {
+    		errorLog.warning("Invalid value for " + key + ": " + value);
+    		return defaultValue;
+    	}
     }
     
 }
\ No newline at end of file
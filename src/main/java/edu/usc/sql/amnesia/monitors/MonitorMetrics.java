@@ -0,0 +1,257 @@
+package edu.usc.sql.amnesia.monitors;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per hotspot metrics of the monitors. The totals are computed from the
+ * hotspots when they are read, so recording a check only touches the
+ * metrics of its hotspot. The verdict statistics are only counted by
+ * GatherStatsMonitor, which knows which queries are attacks.
+ */
+public class MonitorMetrics implements MonitorMetricsMBean {
+    public static final String OBJECT_NAME = "edu.usc.sql.amnesia:type=MonitorMetrics";
+
+    private final ConcurrentHashMap<String, HotspotMetrics> hotspots = new ConcurrentHashMap<String, HotspotMetrics>();
+    private final List<Section> sections = new CopyOnWriteArrayList<Section>();
+    private ScheduledExecutorService scheduler;
+
+    private final StripedCounter statsQueries = new StripedCounter();
+    private final StripedCounter truePositives = new StripedCounter(), falsePositives = new StripedCounter();
+    private final StripedCounter trueNegatives = new StripedCounter(), falseNegatives = new StripedCounter();
+
+    /** Part of the snapshot contributed by another component. */
+    public interface Section {
+        public String snapshot();
+    }
+
+    public HotspotMetrics get(String id) {
+        HotspotMetrics m = hotspots.get(id);
+        if (m == null) {
+            HotspotMetrics newMetrics = new HotspotMetrics(id);
+            m = hotspots.putIfAbsent(id, newMetrics);
+            if (m == null) {
+                m = newMetrics;
+            }
+        }
+        return m;
+    }
+
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    /**
+     * Logs a snapshot of the metrics, with the added sections, every period
+     * seconds.
+     */
+    public synchronized void scheduleSnapshots(long period, final Logger log) {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "amnesia-metrics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                log.info(snapshot());
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    public void addSection(Section section) {
+        sections.add(section);
+    }
+
+    /**
+     * Counts a query checked by GatherStatsMonitor. attack tells whether it
+     * was marked as an attack, accepted whether the model accepted it.
+     */
+    public void countVerdict(boolean attack, boolean accepted) {
+        if (attack) {
+            (accepted ? falseNegatives : truePositives).increment();
+        } else {
+            (accepted ? trueNegatives : falsePositives).increment();
+        }
+    }
+
+    /** Counts a query given to GatherStatsMonitor, checked or not. */
+    public void countStatsQuery() {
+        statsQueries.increment();
+    }
+
+    public long getStatsQueries() {
+        return statsQueries.sum();
+    }
+
+    public long getTruePositives() {
+        return truePositives.sum();
+    }
+
+    public long getFalsePositives() {
+        return falsePositives.sum();
+    }
+
+    public long getTrueNegatives() {
+        return trueNegatives.sum();
+    }
+
+    public long getFalseNegatives() {
+        return falseNegatives.sum();
+    }
+
+    public long getChecks() {
+        long sum = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            sum += m.getChecks();
+        }
+        return sum;
+    }
+
+    public long getAccepts() {
+        long sum = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            sum += m.getAccepts();
+        }
+        return sum;
+    }
+
+    public long getRejections() {
+        long sum = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            sum += m.getRejections();
+        }
+        return sum;
+    }
+
+    public long getLexerErrors() {
+        long sum = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            sum += m.getLexerErrors();
+        }
+        return sum;
+    }
+
+    public long getCacheHits() {
+        long sum = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            sum += m.getCacheHits();
+        }
+        return sum;
+    }
+
+    public int getHotspotCount() {
+        return hotspots.size();
+    }
+
+    public long getLexLatencyMean() {
+        long total = 0, count = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            total += m.getLexLatency().getTotal();
+            count += m.getLexLatency().getCount();
+        }
+        return count == 0 ? 0 : total/count;
+    }
+
+    /** Highest 99th percentile lex latency among the hotspots. */
+    public long getLexLatency99() {
+        long max = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            max = Math.max(max, m.getLexLatency().getPercentile(99));
+        }
+        return max;
+    }
+
+    public long getMatchLatencyMean() {
+        long total = 0, count = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            total += m.getMatchLatency().getTotal();
+            count += m.getMatchLatency().getCount();
+        }
+        return count == 0 ? 0 : total/count;
+    }
+
+    /** Highest 99th percentile match latency among the hotspots. */
+    public long getMatchLatency99() {
+        long max = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            max = Math.max(max, m.getMatchLatency().getPercentile(99));
+        }
+        return max;
+    }
+
+    public long getCheckLatencyMean() {
+        long total = 0, count = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            total += m.getCheckLatency().getTotal();
+            count += m.getCheckLatency().getCount();
+        }
+        return count == 0 ? 0 : total/count;
+    }
+
+    /** Highest 99th percentile check latency among the hotspots. */
+    public long getCheckLatency99() {
+        long max = 0;
+        for (HotspotMetrics m:hotspots.values()) {
+            max = Math.max(max, m.getCheckLatency().getPercentile(99));
+        }
+        return max;
+    }
+
+    public String[] getHotspotIDs() {
+        String[] ids = hotspots.keySet().toArray(new String[0]);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    public String getHotspot(String id) {
+        HotspotMetrics m = hotspots.get(id);
+        return m == null ? null : m.toString();
+    }
+
+    public String snapshot() {
+        StringBuilder s = new StringBuilder();
+        s.append("checks=").append(getChecks()).append(" accepts=").append(getAccepts())
+            .append(" rejections=").append(getRejections()).append(" lexerErrors=").append(getLexerErrors())
+            .append(" cacheHits=").append(getCacheHits()).append(" hotspots=").append(getHotspotCount())
+            .append(" checkMean=").append(getCheckLatencyMean()).append("ns lexMean=").append(getLexLatencyMean()).append("ns matchMean=").append(getMatchLatencyMean()).append("ns");
+        for (String id:getHotspotIDs()) {
+            s.append('\n').append(hotspots.get(id));
+        }
+        for (Section section:sections) {
+            s.append('\n').append(section.snapshot());
+        }
+        return s.toString();
+    }
+
+    public void reset() {
+        for (HotspotMetrics m:hotspots.values()) {
+            m.reset();
+        }
+        statsQueries.reset();
+        truePositives.reset();
+        falsePositives.reset();
+        trueNegatives.reset();
+        falseNegatives.reset();
+    }
+}
@@ -0,0 +1,28 @@
+package edu.usc.sql.amnesia.monitors;
+
+/**
+ * JMX view of the monitor metrics. Latencies are in nanoseconds.
+ */
+public interface MonitorMetricsMBean {
+    public long getChecks();
+    public long getAccepts();
+    public long getRejections();
+    public long getLexerErrors();
+    public long getCacheHits();
+    public int getHotspotCount();
+    public long getLexLatencyMean();
+    public long getLexLatency99();
+    public long getMatchLatencyMean();
+    public long getMatchLatency99();
+    public long getCheckLatencyMean();
+    public long getCheckLatency99();
+    public long getStatsQueries();
+    public long getTruePositives();
+    public long getFalsePositives();
+    public long getTrueNegatives();
+    public long getFalseNegatives();
+    public String[] getHotspotIDs();
+    public String getHotspot(String id);
+    public String snapshot();
+    public void reset();
+}
@@ -15,9 +15,9 @@ public class NormalMonitor extends Monitor {
 	public static void report(String queryString, String id) throws SQLIAException, SQLLexerException {         
 		HotspotModel aut = getAut(id);
 
-		boolean accepts = aut.accepts(queryString, dbLexer);                    
+		boolean accepts = check(id, aut, queryString);                    
 		if (!accepts) {
-			sqliaLog.warning("SQLIA: " + id + " <= " + queryString);
+			logSQLIA("SQLIA", id, queryString, null);
 			throw(new SQLIAException(queryString));
 		}
 	} 
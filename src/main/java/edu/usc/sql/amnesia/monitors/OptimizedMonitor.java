@@ -15,7 +15,7 @@ public class OptimizedMonitor extends Monitor {
     public static void report(String queryString, String id) throws Exception {
         HotspotModel aut = getAut(id);
 
-        if (!aut.accepts(queryString, dbLexer)) {
+        if (!check(id, aut, queryString)) {
             throw(new SQLIAException(queryString));
         }
     }
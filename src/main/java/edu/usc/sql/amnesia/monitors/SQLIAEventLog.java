@@ -0,0 +1,253 @@
+package edu.usc.sql.amnesia.monitors;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Asynchronous log of detected attacks. Request threads only put a small
+ * event in a bounded lock-free ring buffer; a background thread takes the
+ * events in batches and writes them to a file, or to the sqlia logger when
+ * there is no file.
+ *
+ * When the buffer is full new events are dropped. With the sample policy,
+ * once the buffer is half full only one event in sampleRate is kept, so
+ * that a burst still leaves a trace of its later events. Dropped and
+ * sampled out events are counted.
+ */
+public class SQLIAEventLog implements SQLIAEventLogMBean {
+    public static final String OBJECT_NAME = "edu.usc.sql.amnesia:type=SQLIAEventLog";
+    public static final String POLICY_DROP = "drop";
+    public static final String POLICY_SAMPLE = "sample";
+
+    private static final int BATCH = 256;
+    private static final long IDLE_WAIT = 10000000L;
+
+    private static class Event {
+        final long time;
+        final String kind;
+        final String id;
+        final String query;
+        final String detail;
+
+        Event(String kind, String id, String query, String detail) {
+            this.time = System.currentTimeMillis();
+            this.kind = kind;
+            this.id = id;
+            this.query = query;
+            this.detail = detail;
+        }
+    }
+
+    //multiple producers claim slots by moving tail, the writer thread is
+    //the only consumer and owns head
+    private final AtomicReferenceArray<Event> buffer;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+
+    private final boolean sample;
+    private final int sampleRate;
+    private final AtomicLong overflow = new AtomicLong();
+
+    private final StripedCounter dropped = new StripedCounter();
+    private final StripedCounter sampledOut = new StripedCounter();
+    private final AtomicLong written = new AtomicLong();
+
+    private final File file;
+    private final Logger log;
+    private Writer out;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity number of buffered events, rounded up to a power of two
+     * @param policy POLICY_DROP or POLICY_SAMPLE
+     * @param file file the events are appended to, null to write to log
+     */
+    public SQLIAEventLog(int capacity, String policy, int sampleRate, File file, Logger log) {
+        int size = 2;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new AtomicReferenceArray<Event>(size);
+        mask = size-1;
+        this.sample = POLICY_SAMPLE.equalsIgnoreCase(policy);
+        this.sampleRate = Math.max(1, sampleRate);
+        this.file = file;
+        this.log = log;
+        writer = new Thread("amnesia-sqlia-log") {
+            public void run() {
+                drainLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Queues an event, returns false if it was dropped or sampled out.
+     * Never blocks.
+     */
+    public boolean log(String kind, String id, String query, String detail) {
+        long t;
+        do {
+            t = tail.get();
+            long used = t - head;
+            if (used > mask) {
+                dropped.increment();
+                return false;
+            }
+            if (sample && used > (mask >> 1) && overflow.incrementAndGet() % sampleRate != 0) {
+                sampledOut.increment();
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t+1));
+        buffer.lazySet((int)t & mask, new Event(kind, id, query, detail));
+        return true;
+    }
+
+    private void drainLoop() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int n = 0;
+            Event e;
+            while (n < BATCH && (e = poll()) != null) {
+                line.setLength(0);
+                line.append(format.format(new Date(e.time))).append(' ').append(e.kind).append(": ")
+                    .append(e.id).append(" <= ").append(e.query);
+                if (e.detail != null) {
+                    line.append(" match: ").append(e.detail);
+                }
+                write(line.toString());
+                n++;
+            }
+            if (n > 0) {
+                written.addAndGet(n);
+                flush();
+            } else if (tail.get() != head) {
+                //a producer is filling the next slot
+                Thread.yield();
+            } else if (closed) {
+                closeFile();
+                return;
+            } else {
+                LockSupport.parkNanos(IDLE_WAIT);
+            }
+        }
+    }
+
+    private Event poll() {
+        int slot = (int)head & mask;
+        Event e = buffer.get(slot);
+        if (e == null) {
+            //empty, or a producer has claimed the slot but not filled it yet
+            return null;
+        }
+        buffer.lazySet(slot, null);
+        head = head+1;
+        return e;
+    }
+
+    private void write(String line) {
+        if (file == null) {
+            log.warning(line);
+            return;
+        }
+        try {
+            if (out == null) {
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+            }
+            out.write(line);
+            out.write('\n');
+        } catch (IOException ioe) {
+            //keep the event in the regular log rather than losing it
+            log.warning(line);
+        }
+    }
+
+    private void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException ioe) {
+                log.warning("Could not write SQLIA events to " + file + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ioe) {
+                //nothing left to do with it
+            }
+            out = null;
+        }
+    }
+
+    /** Writes the queued events and stops the writer thread. */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    public int getCapacity() {
+        return buffer.length();
+    }
+
+    public long getQueued() {
+        return tail.get() - head;
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    public String toString() {
+        return "SQLIA events: queued=" + getQueued() + " written=" + getWritten() + " dropped=" + getDropped()
+            + " sampledOut=" + getSampledOut();
+    }
+}
@@ -0,0 +1,12 @@
+package edu.usc.sql.amnesia.monitors;
+
+/**
+ * JMX view of the asynchronous SQLIA event log.
+ */
+public interface SQLIAEventLogMBean {
+    public int getCapacity();
+    public long getQueued();
+    public long getWritten();
+    public long getDropped();
+    public long getSampledOut();
+}
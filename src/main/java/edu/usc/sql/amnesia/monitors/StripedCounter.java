@@ -0,0 +1,57 @@
+package edu.usc.sql.amnesia.monitors;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over several cells so that threads updating it
+ * concurrently rarely touch the same cache line. Reads sum all the cells
+ * and are not atomic with respect to concurrent updates.
+ */
+public class StripedCounter {
+    //longs per cell, keeps cells on separate cache lines
+    private static final int PAD = 8;
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        int cpus = Runtime.getRuntime().availableProcessors();
+        while (stripes < cpus && stripes < 16) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES*PAD);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long x) {
+        cells.getAndAdd(cell(), x);
+    }
+
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((h >>> 16) & (STRIPES-1)) * PAD;
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i=0; i<STRIPES; i++) {
+            sum += cells.get(i*PAD);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i=0; i<STRIPES; i++) {
+            cells.set(i*PAD, 0);
+        }
+    }
+
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,220 @@
+package edu.usc.sql.amnesia.monitors;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.usc.sql.amnesia.lexer.LexedQuery;
+import edu.usc.sql.models.HotspotModel;
+import edu.usc.sql.models.TokenAutomaton;
+import edu.usc.sql.models.TokenTransition;
+
+/**
+ * Bounded cache of accepted query skeletons per hotspot.
+ *
+ * The skeleton of a query is its sequence of token types and labels, where
+ * the labels of literals (textfield tokens between quotes) are left out. A
+ * skeleton is only stored when the query was accepted and, while matching,
+ * every literal was read in a state of the token automaton whose successor
+ * does not depend on the label: any query with the same skeleton then goes
+ * through the same states and is accepted as well. Rejected queries are
+ * never cached.
+ *
+ * The cache is a direct mapped table of immutable entries, a new skeleton
+ * replaces whatever was in its slot.
+ */
+public class VerdictCache {
+    public static final int REJECTED = 0;
+    public static final int ACCEPTED = 1;
+    //accepted by a cached skeleton
+    public static final int CACHED = 2;
+
+    private static class Entry {
+        final String id;
+        final long hash;
+        final int[] types;
+        //null for literals
+        final String[] labels;
+
+        Entry(String id, long hash, LexedQuery tokens) {
+            this.id = id;
+            this.hash = hash;
+            int size = tokens.size();
+            types = new int[size];
+            labels = new String[size];
+            int quotes = 0;
+            for (int i=0; i<size; i++) {
+                int type = tokens.getType(i);
+                types[i] = type;
+                if (!isLiteral(type, quotes)) {
+                    labels[i] = tokens.getLabel(i);
+                }
+                if (type == TokenTransition.QUOTE) {
+                    quotes++;
+                }
+            }
+        }
+
+        boolean matches(String id, long hash, LexedQuery tokens) {
+            if (this.hash != hash || types.length != tokens.size() || !this.id.equals(id)) {
+                return false;
+            }
+            for (int i=0; i<types.length; i++) {
+                if (types[i] != tokens.getType(i)) {
+                    return false;
+                }
+                if (labels[i] != null && !tokens.labelEqualsIgnoreCase(i, labels[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong uncacheable = new AtomicLong();
+
+    /**
+     * @param size number of entries, rounded up to a power of two
+     */
+    public VerdictCache(int size) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        table = new AtomicReferenceArray<Entry>(capacity);
+        mask = capacity-1;
+    }
+
+    /**
+     * Returns true if the query is accepted by the model of the hotspot,
+     * using a cached verdict for its skeleton when there is one.
+     */
+    public boolean accepts(String id, HotspotModel aut, LexedQuery tokens) {
+        return check(id, aut, tokens) != REJECTED;
+    }
+
+    /**
+     * Same as accepts, but tells whether the verdict came from the cache:
+     * returns REJECTED, ACCEPTED or CACHED.
+     */
+    public int check(String id, HotspotModel aut, LexedQuery tokens) {
+        TokenAutomaton ta = aut.getTokenAutomaton();
+        if (ta == null) {
+            //no automaton to tell whether the literals matter
+            uncacheable.incrementAndGet();
+            return aut.accepts(tokens) ? ACCEPTED : REJECTED;
+        }
+        long hash = hash(id, tokens);
+        int slot = (int)(hash ^ (hash >>> 32)) & mask;
+        Entry e = table.get(slot);
+        if (e != null && e.matches(id, hash, tokens)) {
+            hits.incrementAndGet();
+            return CACHED;
+        }
+        misses.incrementAndGet();
+
+        int state = ta.getInitialState();
+        boolean literalsMatter = false;
+        int quotes = 0;
+        for (int i=0, size=tokens.size(); i<size; i++) {
+            int type = tokens.getType(i);
+            if (isLiteral(type, quotes) && ta.isLabelSensitive(state, type)) {
+                literalsMatter = true;
+            }
+            if (type == TokenTransition.QUOTE) {
+                quotes++;
+            }
+            state = ta.step(state, ta.getLabelClass(tokens, i), type);
+            if (state == -1) {
+                return REJECTED;
+            }
+        }
+        if (!ta.isAccept(state)) {
+            return REJECTED;
+        }
+        if (literalsMatter) {
+            uncacheable.incrementAndGet();
+        } else {
+            table.set(slot, new Entry(id, hash, tokens));
+            stores.incrementAndGet();
+        }
+        return ACCEPTED;
+    }
+
+    static boolean isLiteral(int type, int quotesBefore) {
+        return (quotesBefore & 1) == 1 && TokenTransition.isTextfield(type);
+    }
+
+    static long hash(String id, LexedQuery tokens) {
+        long h = id.hashCode();
+        String query = tokens.getQuery();
+        int quotes = 0;
+        for (int i=0, size=tokens.size(); i<size; i++) {
+            int type = tokens.getType(i);
+            h = h*31 + type;
+            if (!isLiteral(type, quotes)) {
+                if (tokens.isVerbatim(i)) {
+                    for (int j=tokens.getStart(i), end=j+tokens.getLength(i); j<end; j++) {
+                        h = h*31 + fold(query.charAt(j));
+                    }
+                } else {
+                    String label = tokens.getLabel(i);
+                    for (int j=0; j<label.length(); j++) {
+                        h = h*31 + fold(label.charAt(j));
+                    }
+                }
+            }
+            if (type == TokenTransition.QUOTE) {
+                quotes++;
+            }
+        }
+        return h ^ (h >>> 29);
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    public void clear() {
+        for (int i=0; i<table.length(); i++) {
+            table.set(i, null);
+        }
+    }
+
+    public int capacity() {
+        return table.length();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getStoreCount() {
+        return stores.get();
+    }
+
+    /** Number of accepted queries that could not be cached. */
+    public long getUncacheableCount() {
+        return uncacheable.get();
+    }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double)h/total;
+    }
+
+    public String toString() {
+        return "size=" + capacity() + " hits=" + getHitCount() + " misses=" + getMissCount()
+            + " stores=" + getStoreCount() + " uncacheable=" + getUncacheableCount();
+    }
+}
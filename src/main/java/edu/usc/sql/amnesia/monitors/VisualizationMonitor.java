@@ -65,10 +65,7 @@ public class VisualizationMonitor extends Monitor {
 		out.close();
 
 		if (!qa.getAccept()) {
-			sqliaLog.warning("SQLIA: " + id);
-			sqliaLog.warning("Query: " + queryString);
-			sqliaLog.warning("Match: " + qa.getLongestMatchQuery());
-			sqliaLog.warning("\n--------------------------------\n");
+			logSQLIA("SQLIA", id, queryString, String.valueOf(qa.getLongestMatchQuery()));
 			throw(new SQLIAException(queryString));
 		}
 
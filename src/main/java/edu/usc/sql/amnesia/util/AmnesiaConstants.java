@@ -10,6 +10,35 @@ public class AmnesiaConstants {
 	public static final String PROP_DIR_LOGS = "dir.logs";
 	public static final String PROP_DIR_VIZ_MODELS = "dir.visualization.models";
 	public static final String PROP_DIR_VIZ_QUERY = "dir.visualization.queries";
+	public static final String PROP_AUT_FORMAT = "aut.format";
+	public static final String PROP_AUT_PACK = "aut.pack";
+	public static final String PROP_AUT_MINIMIZE = "aut.minimize";
+	public static final String PROP_ANALYSIS_THREADS = "analysis.threads";
+	public static final String PROP_ANALYSIS_CACHE = "analysis.cache";
+	public static final String PROP_INSTRUMENT_ARCHIVE = "instrument.archive";
+	public static final String PROP_INSTRUMENT_OUTPUT = "instrument.output";
+	public static final String PROP_AUT_PRELOAD = "aut.preload";
+	public static final String PROP_AUT_PRELOAD_THREADS = "aut.preload.threads";
+	public static final String PROP_AUT_PRELOAD_WARMUP = "aut.preload.warmup";
+	public static final String PROP_CACHE_MAX_MODELS = "cache.models.max";
+	public static final String PROP_CACHE_MAX_WEIGHT = "cache.models.maxweight";
+	public static final String PROP_CACHE_VERDICTS = "cache.verdicts.size";
+	public static final String PROP_CHECK_STREAMING = "check.streaming";
+	public static final String PROP_METRICS = "metrics.enabled";
+	public static final String PROP_METRICS_SNAPSHOT = "metrics.snapshot.interval";
+	public static final String PROP_EVENTS_ASYNC = "events.async";
+	public static final String PROP_EVENTS_BUFFER = "events.buffer";
+	public static final String PROP_EVENTS_OVERFLOW = "events.overflow";
+	public static final String PROP_EVENTS_SAMPLE = "events.sample";
+	public static final String PROP_BATCH_THREADS = "batch.threads";
+	public static final String PROP_BATCH_PARALLEL_MIN = "batch.parallel.min";
+	
+	public static final String SQLIA_EVENT_FILE = "sqlia-events.log";
+	//file name and hotspot ID of each .aut file, next to them
+	public static final String AUT_INDEX_FILE = "aut.index";
+	
+	public static final String AUT_FORMAT_BINARY = "binary";
+	public static final String AUT_FORMAT_SERIALIZED = "serialized";
 	
 	private static final String[] DEFAULT_KEYWORDS_ARRAY = {"SELECT", "FROM", "WHERE", "OR", "AND", "DROP", "UPDATE", "LIKE", "UNION", "INNER_JOIN"};
 	private static final String[] DEFAULT_OPERATORS_ARRAY = {"=", "<",	">", "<=", ">=", "!=", "!", ")", "(", ",", "\"", "*", "+", "-",	"%", "'", ";", ".", " "};
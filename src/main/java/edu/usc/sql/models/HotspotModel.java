@@ -15,15 +15,20 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import edu.usc.sql.amnesia.lexer.LexedQuery;
 import edu.usc.sql.amnesia.lexer.Lexer;
+import edu.usc.sql.amnesia.lexer.LexicalToken;
 import edu.usc.sql.amnesia.lexer.SQLLexerException;
+import edu.usc.sql.amnesia.lexer.StreamingLexer;
 import dk.brics.automaton.Automaton;
 import dk.brics.automaton.State;
 import dk.brics.automaton.Transition;
@@ -41,6 +46,10 @@ public class HotspotModel implements Serializable {
 	private Map<Integer, HotspotToken> processedStates;
 	private boolean userDefinedFlag=false;
 
+	private transient TokenAutomaton tokenAutomaton;
+	private transient TokenNFA tokenNFA;
+	private transient volatile boolean compiled=false;
+
 
 	static {
 		String text;
@@ -73,6 +82,13 @@ public class HotspotModel implements Serializable {
 		initialState=initState;
 	}
 
+	HotspotModel (Set<HotspotToken> states, Set<TokenTransition> transitions, HotspotToken initialState, boolean userDefined) {
+		this.states=states;
+		this.transitions=transitions;
+		this.initialState=initialState;
+		this.userDefinedFlag=userDefined;
+	}
+
 	public HotspotModel (Automaton a) {
 		states = new HashSet<HotspotToken>();
 		transitions = new HashSet<TokenTransition>();
@@ -232,51 +248,191 @@ public class HotspotModel implements Serializable {
 
 
 	public boolean accepts(String queryString, Lexer dbLexer) throws SQLLexerException {
-		return analyze(queryString, dbLexer).getAccept();
+		return accepts(dbLexer.lexQuery(queryString));
+	}
+
+	/**
+	 * Accept-only check of a lexed query. Unlike analyze(), no query model or
+	 * match diagnostics are built.
+	 */
+	public boolean accepts(List tokens) {
+		TokenAutomaton ta = getTokenAutomaton();
+		if (ta == null) {
+			return getTokenNFA().run(tokens);
+		}
+		return ta.run(tokens);
+	}
+
+	/**
+	 * Accept-only check of a query lexed into arrays. No objects are
+	 * allocated unless the query has escaped string constants.
+	 */
+	public boolean accepts(LexedQuery tokens) {
+		TokenAutomaton ta = getTokenAutomaton();
+		if (ta == null) {
+			return getTokenNFA().run(tokens);
+		}
+		return ta.run(tokens);
+	}
+
+	/**
+	 * Accept-only check that matches the tokens while the query is being
+	 * lexed, and stops lexing at the first token the model rejects. Neither
+	 * the token list nor a query model is built.
+	 */
+	public boolean matches(String queryString, StreamingLexer lexer) throws SQLLexerException {
+		TokenAutomaton ta = getTokenAutomaton();
+		if (ta == null) {
+			return getTokenNFA().run(queryString, lexer);
+		}
+		return ta.run(queryString, lexer);
+	}
+
+	/**
+	 * Replaces the model by its minimal deterministic equivalent at the
+	 * token level. Returns false, leaving the model unchanged, if the
+	 * deterministic model would have more than stateLimit states.
+	 */
+	public boolean minimize(int stateLimit) {
+		return new TokenMinimizer(stateLimit).minimize(this);
 	}
 
+	public boolean minimize() {
+		return minimize(TokenAutomaton.DEFAULT_STATE_LIMIT);
+	}
+
+	synchronized void replace(Set<HotspotToken> states, Set<TokenTransition> transitions, HotspotToken initialState) {
+		this.states=states;
+		this.transitions=transitions;
+		this.initialState=initialState;
+		tokenAutomaton=null;
+		tokenNFA=null;
+		compiled=false;
+	}
+
+	/**
+	 * Returns the token DFA of this model, compiled on first use. Returns null
+	 * if the model is too large to be determinized.
+	 */
+	public TokenAutomaton getTokenAutomaton() {
+		if (!compiled) {
+			synchronized (this) {
+				if (!compiled) {
+					tokenAutomaton = TokenAutomaton.compile(this);
+					if (tokenAutomaton == null) {
+						tokenNFA = TokenNFA.compile(this);
+					}
+					compiled = true;
+				}
+			}
+		}
+		return tokenAutomaton;
+	}
+
+	/**
+	 * Returns the matcher used when the model has no token DFA, or null if
+	 * the DFA could be compiled.
+	 */
+	public TokenNFA getTokenNFA() {
+		getTokenAutomaton();
+		return tokenNFA;
+	}
+
+	/**
+	 * Checks the query and returns its analysis. The verdict is computed right
+	 * away, the longest matches and visited transitions are only explored when
+	 * first requested from the returned QueryAnalysis.
+	 */
 	public QueryAnalysis analyze(String queryString, Lexer dbLexer) throws SQLLexerException {
-		QueryModel qModel = new QueryModel(queryString, dbLexer);
-		QueryAnalysis qa = new QueryAnalysis();
-		boolean accepts=explore(qModel.getInitialState(), initialState, new ArrayList<TokenTransition>(), new ArrayList<TokenTransition>(), qa);
-		qa.setAccept(accepts);
-		return qa;
+		List tokens = new ArrayList(dbLexer.lexQuery(queryString));
+		return new QueryAnalysis(this, tokens, accepts(tokens));
+	}
+
+	boolean explore(QueryModel qModel, QueryAnalysis qa) {
+		return explore(qModel.getInitialState(), initialState, new ArrayList<TokenTransition>(), new ArrayList<TokenTransition>(), qa,
+			new IdentityHashMap<QueryToken, Set<HotspotToken>>());
 	}
 	
 	
-	private boolean explore(QueryToken queryNode, HotspotToken modelNode, List<TokenTransition> matchQuery, List<TokenTransition> matchModel, QueryAnalysis qa) {
+	/*
+	 * failed holds the pairs of query and model states already explored
+	 * without a match. Reaching such a pair again, necessarily at the same
+	 * depth, can neither match nor find a longer match, so it is skipped:
+	 * each pair is explored once instead of once per path leading to it.
+	 */
+	private boolean explore(QueryToken queryNode, HotspotToken modelNode, List<TokenTransition> matchQuery, List<TokenTransition> matchModel, QueryAnalysis qa,
+			Map<QueryToken, Set<HotspotToken>> failed) {
 		if (matchQuery.size() > qa.getLongestMatchQuery().size()) {qa.setLongestMatchQuery(matchQuery);}
 		if (matchModel.size() > qa.getLongestMatchModel().size()) {qa.setLongestMatchModel(matchModel);}
 
 		if ((queryNode != null) && (modelNode != null)) {
-			if ((queryNode.isAccept()) && (modelNode.isAccept())) {
+			Set<HotspotToken> failedModelNodes = failed.get(queryNode);
+			if (failedModelNodes == null) {
+				failedModelNodes = Collections.newSetFromMap(new IdentityHashMap<HotspotToken, Boolean>());
+				failed.put(queryNode, failedModelNodes);
+			} else if (failedModelNodes.contains(modelNode)) {
+				return false;
+			}
+			if (exploreFrom(queryNode, modelNode, matchQuery, matchModel, qa, failed)) {
 				return true;
-			} else {
-				TokenTransition nextQueryTransition=queryNode.next();
-				if (nextQueryTransition!=null) {
-					Set nextModelTransitionSet=modelNode.next(nextQueryTransition);
-					Iterator it = nextModelTransitionSet.iterator();
-					while (it.hasNext()) {
-						TokenTransition nextModelTransition = (TokenTransition) it.next();
-						qa.getVisited().add(nextModelTransition);
-						List<TokenTransition> tempQuery = new ArrayList<TokenTransition>(matchQuery);
-						List<TokenTransition> tempModel = new ArrayList<TokenTransition>(matchModel);
-						tempQuery.add(nextQueryTransition);
-						tempModel.add(nextModelTransition);
-						if (explore((QueryToken)nextQueryTransition.getDest(), (HotspotToken)nextModelTransition.getDest(), tempQuery, tempModel, qa)) {
+			}
+			failedModelNodes.add(modelNode);
+			return false;
+		} else {
+			return false;
+		}
+	}
+
+	private boolean exploreFrom(QueryToken queryNode, HotspotToken modelNode, List<TokenTransition> matchQuery, List<TokenTransition> matchModel, QueryAnalysis qa,
+			Map<QueryToken, Set<HotspotToken>> failed) {
+		if ((queryNode.isAccept()) && (modelNode.isAccept())) {
+			return true;
+		} else {
+			TokenTransition nextQueryTransition=queryNode.next();
+			if (nextQueryTransition!=null) {
+				TransitionIndex index = modelNode.getTransitionIndex();
+				int type = nextQueryTransition.getType();
+				for (TokenTransition tt:index.get(nextQueryTransition.getSymbol())) {
+					if (!TransitionIndex.inKindBucket(tt, type) && exploreStep(nextQueryTransition, tt, matchQuery, matchModel, qa, failed)) {
+						return true;
+					}
+				}
+				if (TokenTransition.isTextfield(type)) {
+					for (TokenTransition tt:index.getAnyTextfield()) {
+						if (exploreStep(nextQueryTransition, tt, matchQuery, matchModel, qa, failed)) {
 							return true;
 						}
-					} 
-					return false;    
-				} else {
-					return false;
+					}
 				}
+				if (type == TokenTransition.VAR) {
+					for (TokenTransition tt:index.getAnyVar()) {
+						if (tt.getType() != TokenTransition.VAR && exploreStep(nextQueryTransition, tt, matchQuery, matchModel, qa, failed)) {
+							return true;
+						}
+					}
+				}
+				for (TokenTransition tt:index.getUnindexed()) {
+					if (tt.matches(nextQueryTransition) && exploreStep(nextQueryTransition, tt, matchQuery, matchModel, qa, failed)) {
+						return true;
+					}
+				}
+				return false;    
+			} else {
+				return false;
 			}
-		} else {
-			return false;
 		}
 	}
 
+	private boolean exploreStep(TokenTransition nextQueryTransition, TokenTransition nextModelTransition, List<TokenTransition> matchQuery, List<TokenTransition> matchModel, QueryAnalysis qa,
+			Map<QueryToken, Set<HotspotToken>> failed) {
+		qa.getVisited().add(nextModelTransition);
+		List<TokenTransition> tempQuery = new ArrayList<TokenTransition>(matchQuery);
+		List<TokenTransition> tempModel = new ArrayList<TokenTransition>(matchModel);
+		tempQuery.add(nextQueryTransition);
+		tempModel.add(nextModelTransition);
+		return explore((QueryToken)nextQueryTransition.getDest(), (HotspotToken)nextModelTransition.getDest(), tempQuery, tempModel, qa, failed);
+	}
+
 	public int getNumberOfStates() {
 		return states.size();
 	}
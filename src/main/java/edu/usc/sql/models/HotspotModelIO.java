@@ -0,0 +1,181 @@
+package edu.usc.sql.models;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Versioned binary encoding of hotspot models. Unlike Java serialization the
+ * format does not depend on the class layout: a model is stored as its list
+ * of states, a table of distinct labels and a list of transitions that
+ * refer to both by index.
+ *
+ * <pre>
+ * int    magic ("AMNM")
+ * short  version
+ * byte   flags (1 = model has user defined elements)
+ * int    number of states, then per state: int id, byte accept
+ * int    index of the initial state
+ * int    number of labels, then per label: int length, UTF-8 bytes
+ * int    number of transitions, then per transition:
+ *        int source, int dest, int label, byte type
+ * </pre>
+ */
+public class HotspotModelIO {
+	public static final int MAGIC = 0x414D4E4D;
+	public static final short VERSION = 1;
+
+	private static final int FLAG_USER_DEFINED = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static void write(HotspotModel model, OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+
+		Map<Token, Integer> index = new IdentityHashMap<Token, Integer>();
+		List<Token> states = new ArrayList<Token>();
+		LinkedList<Token> worklist = new LinkedList<Token>();
+		add(model.getInitialState(), index, states, worklist);
+		while (!worklist.isEmpty()) {
+			Token t = worklist.removeFirst();
+			for (Object o:t.getOutTransitions()) {
+				add(((TokenTransition)o).getDest(), index, states, worklist);
+			}
+		}
+
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeByte(model.hasUserDefinedElements() ? FLAG_USER_DEFINED : 0);
+		out.writeInt(states.size());
+		for (Token t:states) {
+			out.writeInt(t.getID());
+			out.writeByte(t.isAccept() ? 1 : 0);
+		}
+		out.writeInt(0);
+
+		Map<String, Integer> labels = new HashMap<String, Integer>();
+		List<String> labelList = new ArrayList<String>();
+		int numTransitions = 0;
+		for (Token t:states) {
+			for (Object o:t.getOutTransitions()) {
+				TokenTransition tt = (TokenTransition)o;
+				if (!labels.containsKey(tt.getLabel())) {
+					labels.put(tt.getLabel(), Integer.valueOf(labelList.size()));
+					labelList.add(tt.getLabel());
+				}
+				numTransitions++;
+			}
+		}
+		out.writeInt(labelList.size());
+		for (String label:labelList) {
+			byte[] bytes = label.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		out.writeInt(numTransitions);
+		for (int i=0; i<states.size(); i++) {
+			for (Object o:states.get(i).getOutTransitions()) {
+				TokenTransition tt = (TokenTransition)o;
+				out.writeInt(i);
+				out.writeInt(index.get(tt.getDest()).intValue());
+				out.writeInt(labels.get(tt.getLabel()).intValue());
+				out.writeByte(tt.getType());
+			}
+		}
+		out.flush();
+	}
+
+	private static void add(Token t, Map<Token, Integer> index, List<Token> states, LinkedList<Token> worklist) {
+		if (!index.containsKey(t)) {
+			index.put(t, Integer.valueOf(states.size()));
+			states.add(t);
+			worklist.add(t);
+		}
+	}
+
+	public static byte[] toBytes(HotspotModel model) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		write(model, bytes);
+		return bytes.toByteArray();
+	}
+
+	/** Returns true if the buffer starts with an encoded model. Does not move the buffer. */
+	public static boolean isEncodedModel(ByteBuffer buffer) {
+		return buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == MAGIC;
+	}
+
+	public static HotspotModel read(InputStream stream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		int n;
+		while ((n = stream.read(chunk)) != -1) {
+			bytes.write(chunk, 0, n);
+		}
+		return read(ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	/** Decodes one model starting at the position of the buffer. */
+	public static HotspotModel read(ByteBuffer buffer) throws IOException {
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("Not an encoded hotspot model");
+			}
+			short version = buffer.getShort();
+			if (version != VERSION) {
+				throw new IOException("Unsupported hotspot model version: " + version);
+			}
+			int flags = buffer.get();
+
+			int numStates = buffer.getInt();
+			HotspotToken[] states = new HotspotToken[numStates];
+			for (int i=0; i<numStates; i++) {
+				states[i] = new HotspotToken(buffer.getInt());
+				states[i].setAccept(buffer.get() != 0);
+			}
+			HotspotToken initial = states[buffer.getInt()];
+			initial.setInitial();
+
+			String[] labels = new String[buffer.getInt()];
+			for (int i=0; i<labels.length; i++) {
+				byte[] bytes = new byte[buffer.getInt()];
+				buffer.get(bytes);
+				labels[i] = new String(bytes, UTF8);
+			}
+
+			int numTransitions = buffer.getInt();
+			Set<TokenTransition> transitions = new HashSet<TokenTransition>();
+			for (int i=0; i<numTransitions; i++) {
+				HotspotToken source = states[buffer.getInt()];
+				HotspotToken dest = states[buffer.getInt()];
+				TokenTransition tt = new TokenTransition(source, dest, labels[buffer.getInt()], buffer.get());
+				transitions.add(tt);
+				source.addOutTransition(tt);
+				dest.addInTransition(tt);
+			}
+
+			Set<HotspotToken> stateSet = new HashSet<HotspotToken>();
+			for (HotspotToken t:states) {
+				stateSet.add(t);
+			}
+			return new HotspotModel(stateSet, transitions, initial, (flags & FLAG_USER_DEFINED) != 0);
+		} catch (BufferUnderflowException bue) {
+			throw new IOException("Truncated hotspot model");
+		} catch (ArrayIndexOutOfBoundsException aioobe) {
+			throw new IOException("Corrupt hotspot model");
+		} catch (NegativeArraySizeException nase) {
+			throw new IOException("Corrupt hotspot model");
+		}
+	}
+}
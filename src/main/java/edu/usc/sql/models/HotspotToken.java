@@ -17,6 +17,10 @@ public class HotspotToken extends Token implements Serializable{
         super();
     }
     
+    public HotspotToken(int id) {
+        super(id);
+    }
+    
     public HotspotToken(State s) {
         super(s);
     }
@@ -0,0 +1,235 @@
+package edu.usc.sql.models;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single file holding the encoded models of all the hotspots of an
+ * application, indexed by hotspot ID. The file is memory-mapped when opened
+ * and only its index is read; each model is decoded on request. A pack that
+ * is about to be replaced by a new one is read into the heap instead, a
+ * mapped file cannot be replaced on Windows and a truncated one makes later
+ * accesses to its mapping crash.
+ *
+ * <pre>
+ * int    magic ("AMNP")
+ * short  version
+ * int    number of models, then per model:
+ *        int ID length, UTF-8 ID, long offset, int length
+ * models encoded with HotspotModelIO
+ * </pre>
+ */
+public class ModelPack {
+	public static final int MAGIC = 0x414D4E50;
+	public static final short VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final ByteBuffer buffer;
+	private final Map<String, long[]> index;
+
+	private ModelPack(File file, ByteBuffer buffer, Map<String, long[]> index) {
+		this.file = file;
+		this.buffer = buffer;
+		this.index = index;
+	}
+
+	/** Opens a pack by mapping its file. */
+	public static ModelPack open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer buffer;
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			//the mapping stays valid after the channel is closed
+			raf.close();
+		}
+		return open(file, buffer);
+	}
+
+	/** Reads a whole pack into the heap, the file is not kept open. */
+	public static ModelPack read(File file) throws IOException {
+		return open(file, ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+	}
+
+	private static ModelPack open(File file, ByteBuffer buffer) throws IOException {
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("Not a model pack: " + file);
+			}
+			short version = buffer.getShort();
+			if (version != VERSION) {
+				throw new IOException("Unsupported model pack version " + version + ": " + file);
+			}
+			int count = buffer.getInt();
+			Map<String, long[]> index = new HashMap<String, long[]>(count*2);
+			for (int i=0; i<count; i++) {
+				byte[] id = new byte[buffer.getInt()];
+				buffer.get(id);
+				long offset = buffer.getLong();
+				long length = buffer.getInt();
+				if (offset < 0 || offset+length > buffer.capacity()) {
+					throw new IOException("Corrupt model pack index: " + file);
+				}
+				index.put(new String(id, UTF8), new long[] {offset, length});
+			}
+			return new ModelPack(file, buffer, index);
+		} catch (BufferUnderflowException bue) {
+			throw new IOException("Truncated model pack: " + file);
+		} catch (NegativeArraySizeException nase) {
+			throw new IOException("Corrupt model pack index: " + file);
+		}
+	}
+
+	public boolean contains(String id) {
+		return index.containsKey(id);
+	}
+
+	public Set<String> getIDs() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Decodes the model of the given hotspot, null if the pack has none. Thread-safe. */
+	public HotspotModel get(String id) throws IOException {
+		ByteBuffer model = slice(id);
+		return model == null ? null : HotspotModelIO.read(model);
+	}
+
+	/**
+	 * Returns the encoded model of the given hotspot as it is stored, null if
+	 * the pack has none. Thread-safe.
+	 */
+	public byte[] getEncoded(String id) {
+		ByteBuffer model = slice(id);
+		if (model == null) {
+			return null;
+		}
+		byte[] encoded = new byte[model.remaining()];
+		model.get(encoded);
+		return encoded;
+	}
+
+	private ByteBuffer slice(String id) {
+		long[] entry = index.get(id);
+		if (entry == null) {
+			return null;
+		}
+		ByteBuffer model = buffer.duplicate();
+		model.position((int)entry[0]);
+		model.limit((int)(entry[0]+entry[1]));
+		return model.slice();
+	}
+
+	/** Collects encoded models and writes them into a pack file. */
+	public static class Writer {
+		private final List<String> ids = new ArrayList<String>();
+		private final List<byte[]> models = new ArrayList<byte[]>();
+		private final Set<String> added = new HashSet<String>();
+
+		/** Thread-safe, the model is encoded before taking the lock. */
+		public void add(String id, HotspotModel model) throws IOException {
+			addEncoded(id, HotspotModelIO.toBytes(model));
+		}
+
+		/**
+		 * Adds a model encoded with HotspotModelIO, such as one from
+		 * getEncoded(). Thread-safe. A pack has one model per ID, adding a
+		 * second one is an error rather than a race on which one is kept.
+		 */
+		public synchronized void addEncoded(String id, byte[] encoded) {
+			if (!added.add(id)) {
+				throw new IllegalArgumentException("Duplicate hotspot ID in model pack: " + id);
+			}
+			ids.add(id);
+			models.add(encoded);
+		}
+
+		/**
+		 * Writes the models sorted by ID, so that the pack does not depend on
+		 * the order they were added in. The pack is written to a temporary file
+		 * that then replaces the given one.
+		 */
+		public synchronized void write(File file) throws IOException {
+			Integer[] order = new Integer[ids.size()];
+			for (int i=0; i<order.length; i++) {
+				order[i] = Integer.valueOf(i);
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return ids.get(a.intValue()).compareTo(ids.get(b.intValue()));
+				}
+			});
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(header);
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeInt(ids.size());
+			byte[][] encodedIDs = new byte[ids.size()][];
+			long headerSize = 4+2+4;
+			for (int i=0; i<ids.size(); i++) {
+				encodedIDs[i] = ids.get(order[i].intValue()).getBytes(UTF8);
+				headerSize += 4+encodedIDs[i].length+8+4;
+			}
+			long offset = headerSize;
+			for (int i=0; i<ids.size(); i++) {
+				out.writeInt(encodedIDs[i].length);
+				out.write(encodedIDs[i]);
+				out.writeLong(offset);
+				out.writeInt(models.get(order[i].intValue()).length);
+				offset += models.get(order[i].intValue()).length;
+			}
+			out.flush();
+
+			File dir = file.getAbsoluteFile().getParentFile();
+			File temp = File.createTempFile(file.getName(), ".tmp", dir);
+			try {
+				BufferedOutputStream file_out = new BufferedOutputStream(new FileOutputStream(temp));
+				try {
+					header.writeTo(file_out);
+					for (Integer i:order) {
+						file_out.write(models.get(i.intValue()));
+					}
+				} finally {
+					file_out.close();
+				}
+				try {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				temp.delete();
+			}
+		}
+	}
+}
@@ -12,22 +12,43 @@ public class QueryAnalysis {
 	protected Set<TokenTransition> visited;
 	protected boolean accept;
 
+	//set while the match diagnostics have not been explored yet
+	private HotspotModel model;
+	private List tokens;
 
 	
-	
 	public QueryAnalysis() {
 		longestMatchQuery = new ArrayList<TokenTransition>();
 		longestMatchModel = new ArrayList<TokenTransition>();
 		visited = new HashSet<TokenTransition>();
 	}
 
+	QueryAnalysis(HotspotModel model, List tokens, boolean accept) {
+		this();
+		this.model = model;
+		this.tokens = tokens;
+		this.accept = accept;
+	}
+
+	private synchronized void explore() {
+		if (model != null) {
+			HotspotModel m = model;
+			model = null;
+			m.explore(new QueryModel(tokens), this);
+			tokens = null;
+		}
+	}
+
 	public List<TokenTransition> getLongestMatchModel() {
+		explore();
 		return longestMatchModel;
 	}
 	public List<TokenTransition> getLongestMatchQuery() {
+		explore();
 		return longestMatchQuery;
 	}
 	public Set<TokenTransition> getVisited() {
+		explore();
 		return visited;
 	}
 	public boolean getAccept() {
@@ -23,7 +23,10 @@ public class QueryModel {
     private List<QueryTokenTransition> transitions = new ArrayList<QueryTokenTransition>();
     
     public QueryModel(String queryString, Lexer l) throws SQLLexerException {
-        List tokens = l.lexQuery(queryString);
+        this(l.lexQuery(queryString));
+    }
+
+    public QueryModel(List tokens) {
         Iterator it = tokens.iterator();
         initialState = new QueryToken();
         states.add(initialState);
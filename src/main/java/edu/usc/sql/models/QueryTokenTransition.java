@@ -11,6 +11,11 @@ public class QueryTokenTransition extends TokenTransition implements Serializabl
 	public QueryTokenTransition(Token from, Token to, LexicalToken info) {
         super(from, to, info);
     }
+
+	//query labels are looked up but never added to the symbol table
+	protected int symbolFor(String l) {
+		return SymbolTable.lookup(l);
+	}
 	
 	public String toDot() {
 		      
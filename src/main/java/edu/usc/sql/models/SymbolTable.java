@@ -0,0 +1,119 @@
+package edu.usc.sql.models;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * JVM wide table of case folded token labels. Labels of model transitions
+ * are interned into small positive integers, so that labels that are equal
+ * ignoring case have the same symbol in every model. Labels coming from
+ * queries are only looked up, never added, so that query text cannot grow
+ * the table.
+ *
+ * Lookups take no lock: the table is an open addressing array of symbols
+ * that is only ever filled in place (symbol first, then slot) and replaced
+ * by a larger copy when it gets too full.
+ */
+public class SymbolTable {
+	/** Symbol of labels that are not in the table. */
+	public static final int NO_SYMBOL = -1;
+
+	private static class Table {
+		//slot -> symbol, 0 for an empty slot
+		final AtomicIntegerArray slots;
+		//symbol -> label
+		final AtomicReferenceArray<String> labels;
+
+		Table(int capacity) {
+			slots = new AtomicIntegerArray(capacity*2);
+			labels = new AtomicReferenceArray<String>(capacity+1);
+		}
+	}
+
+	private static volatile Table table = new Table(1024);
+	private static int size = 0;
+
+	public static int lookup(String label) {
+		return lookup(label, 0, label.length());
+	}
+
+	/** Returns the symbol of the region of text, or NO_SYMBOL. */
+	public static int lookup(String text, int start, int length) {
+		Table t = table;
+		int mask = t.slots.length()-1;
+		int slot = hash(text, start, length) & mask;
+		int symbol;
+		while ((symbol = t.slots.get(slot)) != 0) {
+			String l = t.labels.get(symbol);
+			if (l.length() == length && text.regionMatches(true, start, l, 0, length)) {
+				return symbol;
+			}
+			slot = (slot+1) & mask;
+		}
+		return NO_SYMBOL;
+	}
+
+	/** Returns the symbol of the label, adding it to the table if needed. */
+	public static int intern(String label) {
+		int symbol = lookup(label);
+		if (symbol != NO_SYMBOL) {
+			return symbol;
+		}
+		synchronized (SymbolTable.class) {
+			symbol = lookup(label);
+			if (symbol != NO_SYMBOL) {
+				return symbol;
+			}
+			Table t = table;
+			if (size+1 >= t.labels.length()) {
+				t = grow(t);
+			}
+			symbol = ++size;
+			t.labels.set(symbol, label);
+			insert(t, symbol, label);
+			return symbol;
+		}
+	}
+
+	private static Table grow(Table old) {
+		Table t = new Table((old.labels.length()-1)*2);
+		for (int s=1; s<=size; s++) {
+			String label = old.labels.get(s);
+			t.labels.set(s, label);
+			insert(t, s, label);
+		}
+		table = t;
+		return t;
+	}
+
+	private static void insert(Table t, int symbol, String label) {
+		int mask = t.slots.length()-1;
+		int slot = hash(label, 0, label.length()) & mask;
+		while (t.slots.get(slot) != 0) {
+			slot = (slot+1) & mask;
+		}
+		t.slots.set(slot, symbol);
+	}
+
+	/** Returns the label the symbol was first interned with. */
+	public static String getLabel(int symbol) {
+		return table.labels.get(symbol);
+	}
+
+	public static synchronized int size() {
+		return size;
+	}
+
+	static char fold(char c) {
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	/** Case insensitive hash of a region of text. */
+	public static int hash(String text, int start, int length) {
+		int h = 0;
+		for (int i=start; i<start+length; i++) {
+			h = 31*h + fold(text.charAt(i));
+		}
+		return h ^ (h >>> 16);
+	}
+}
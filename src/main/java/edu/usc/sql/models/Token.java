@@ -14,6 +14,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dk.brics.automaton.State;
 
@@ -24,14 +25,21 @@ public class Token implements Serializable{
     protected boolean acceptState=false;
     protected int id;
     protected boolean initialState=false;
-    protected static int globalID=0;
+    protected static final AtomicInteger globalID=new AtomicInteger();
     
     private long numPath=0;
+    //built on first use, reset when the outgoing transitions change
+    private transient volatile TransitionIndex transitionIndex;
     
     
     public Token() {
-        id=globalID;
-        globalID++;
+        id=globalID.getAndIncrement();
+        outTransitions = new HashSet<TokenTransition>();
+        inTransitions = new HashSet<TokenTransition>();
+    }
+    
+    public Token(int id) {
+        this.id=id;
         outTransitions = new HashSet<TokenTransition>();
         inTransitions = new HashSet<TokenTransition>();
     }
@@ -65,6 +73,7 @@ public class Token implements Serializable{
     }
     
     public void addOutTransition(TokenTransition t) {
+        transitionIndex = null;
         if (outTransitions.add(t)) {
             t.setSource(this);
         }
@@ -79,6 +88,7 @@ public class Token implements Serializable{
     }
     
     public void setOutTransitions(Collection<TokenTransition> transitions) {
+        transitionIndex = null;
         outTransitions.clear();
         outTransitions.addAll(transitions);
     }
@@ -111,6 +121,7 @@ public class Token implements Serializable{
     }
     
     public void addTransition(TokenTransition tt) {
+    	transitionIndex = null;
     	outTransitions.add(tt);
     	tt.getDest().inTransitions.add(tt);
     }
@@ -129,11 +140,40 @@ public class Token implements Serializable{
     	return outMap;
     }
     
+    /**
+     * Returns the outgoing transitions indexed by label symbol and by kind.
+     * The index reflects the transitions added through this class; changes
+     * made directly to the set returned by getOutTransitions() are not seen.
+     */
+    TransitionIndex getTransitionIndex() {
+        TransitionIndex index = transitionIndex;
+        if (index == null) {
+            index = new TransitionIndex(outTransitions);
+            transitionIndex = index;
+        }
+        return index;
+    }
+
     public Set next(TokenTransition t) {
         Set<TokenTransition> nextSet= new HashSet<TokenTransition>();
-        Iterator it = outTransitions.iterator();
-        while (it.hasNext()) {
-            TokenTransition outTrans = (TokenTransition)it.next();
+        TransitionIndex index = getTransitionIndex();
+        int type = t.getType();
+        for (TokenTransition outTrans:index.get(t.getSymbol())) {
+            if (!TransitionIndex.inKindBucket(outTrans, type)) {
+                nextSet.add(outTrans);
+            }
+        }
+        if (TokenTransition.isTextfield(type)) {
+            for (TokenTransition outTrans:index.getAnyTextfield()) {
+                nextSet.add(outTrans);
+            }
+        }
+        if (type == TokenTransition.VAR) {
+            for (TokenTransition outTrans:index.getAnyVar()) {
+                nextSet.add(outTrans);
+            }
+        }
+        for (TokenTransition outTrans:index.getUnindexed()) {
             if (outTrans.matches(t)) {
                 nextSet.add(outTrans);
             }
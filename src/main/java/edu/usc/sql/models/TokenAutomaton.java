@@ -0,0 +1,415 @@
+package edu.usc.sql.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import edu.usc.sql.amnesia.lexer.LexedQuery;
+import edu.usc.sql.amnesia.lexer.LexicalToken;
+import edu.usc.sql.amnesia.lexer.SQLLexerException;
+import edu.usc.sql.amnesia.lexer.StreamingLexer;
+import edu.usc.sql.amnesia.lexer.TokenSink;
+
+/**
+ * Deterministic token automaton compiled from a {@link HotspotModel}.
+ *
+ * Query tokens are mapped to an input class made of the label symbol
+ * and the kind of the token (plain, textfield or VAR), so that every
+ * transition of the model either matches all the tokens of a class or none.
+ * The subset construction over these classes gives a DFA whose transition
+ * function is stored in one flat table, and a query is checked with a single
+ * left-to-right pass over its tokens.
+ */
+public class TokenAutomaton {
+	public static final int DEFAULT_STATE_LIMIT=20000;
+	//cells of the transition table, states times classes: 16MB of ints
+	public static final int DEFAULT_CELL_LIMIT=1<<22;
+
+	static final int KIND_PLAIN=0;
+	static final int KIND_TEXTFIELD=1;
+	static final int KIND_VAR=2;
+	static final int KINDS=3;
+
+	protected int numStates;
+	protected int numClasses;
+	protected int initial;
+	protected boolean[] accept;
+	//delta(state, class) = transitions[state*numClasses + class], -1 if no state
+	protected int[] transitions;
+
+	//per state and kind: true if the successor of a textfield or VAR token depends on its label
+	protected boolean[] textfieldSensitive;
+	protected boolean[] varSensitive;
+
+	//number of distinct label symbols of the model, the label class
+	//numLabels is "any other label"
+	protected int numLabels;
+	//open addressing map from symbol to label class
+	protected int[] symbolKeys;
+	protected int[] symbolClasses;
+
+	protected TokenAutomaton() {
+	}
+
+	public static TokenAutomaton compile(HotspotModel model) {
+		return compile(model, DEFAULT_STATE_LIMIT);
+	}
+
+	public static TokenAutomaton compile(HotspotModel model, int stateLimit) {
+		return compile(model, stateLimit, DEFAULT_CELL_LIMIT);
+	}
+
+	/**
+	 * Returns the compiled automaton, or null if the subset construction
+	 * needs more than stateLimit states or a transition table of more than
+	 * cellLimit cells. Models with many distinct labels have many classes,
+	 * so the table can be large long before the states reach their limit.
+	 */
+	public static TokenAutomaton compile(HotspotModel model, int stateLimit, int cellLimit) {
+		TokenAutomaton ta = new TokenAutomaton();
+
+		//number the states of the model
+		Map<Token, Integer> index = new IdentityHashMap<Token, Integer>();
+		List<Token> tokens = new ArrayList<Token>();
+		LinkedList<Token> worklist = new LinkedList<Token>();
+		index.put(model.getInitialState(), Integer.valueOf(0));
+		tokens.add(model.getInitialState());
+		worklist.add(model.getInitialState());
+		Map<Integer, Integer> labelIndex = new HashMap<Integer, Integer>();
+		IntList labelList = new IntList();
+		while (!worklist.isEmpty()) {
+			Token t = worklist.removeFirst();
+			for (Object o:t.getOutTransitions()) {
+				TokenTransition tt = (TokenTransition)o;
+				Integer symbol = Integer.valueOf(tt.getSymbol());
+				if (!labelIndex.containsKey(symbol)) {
+					labelIndex.put(symbol, Integer.valueOf(labelList.size));
+					labelList.add(symbol.intValue());
+				}
+				if (!index.containsKey(tt.getDest())) {
+					index.put(tt.getDest(), Integer.valueOf(tokens.size()));
+					tokens.add(tt.getDest());
+					worklist.add(tt.getDest());
+				}
+			}
+		}
+		ta.numLabels = labelList.size;
+		ta.buildSymbolTable(labelList.toArray());
+		int otherLabel = ta.numLabels;
+		int numClasses = (otherLabel+1)*KINDS;
+		ta.numClasses = numClasses;
+		if (numClasses > cellLimit) {
+			return null;
+		}
+
+		//per model state: outgoing (class-independent) edge buckets
+		int n = tokens.size();
+		int[][] specificLabel = new int[n][];
+		int[][] specificDest = new int[n][];
+		int[][] anyTextfieldDest = new int[n][];
+		int[][] anyVarDest = new int[n][];
+		for (int i=0; i<n; i++) {
+			IntList sl = new IntList(), sd = new IntList(), tf = new IntList(), var = new IntList();
+			for (Object o:tokens.get(i).getOutTransitions()) {
+				TokenTransition tt = (TokenTransition)o;
+				int dest = index.get(tt.getDest()).intValue();
+				sl.add(labelIndex.get(Integer.valueOf(tt.getSymbol())).intValue());
+				sd.add(dest);
+				if (tt.getType() == TokenTransition.VAR) {
+					//matches every textfield query token
+					tf.add(dest);
+				} else if (tt.isTextfield()) {
+					//matches every VAR query token
+					var.add(dest);
+				}
+			}
+			specificLabel[i]=sl.toArray();
+			specificDest[i]=sd.toArray();
+			anyTextfieldDest[i]=tf.toArray();
+			anyVarDest[i]=var.toArray();
+		}
+
+		//subset construction
+		Map<IntArrayKey, Integer> subsets = new HashMap<IntArrayKey, Integer>();
+		List<int[]> subsetList = new ArrayList<int[]>();
+		IntList delta = new IntList();
+		int[] initialSet = {0};
+		subsets.put(new IntArrayKey(initialSet), Integer.valueOf(0));
+		subsetList.add(initialSet);
+		BitSet[] succ = new BitSet[numClasses];
+		for (int c=0; c<numClasses; c++) {
+			succ[c] = new BitSet(n);
+		}
+		BitSet anyTextfield = new BitSet(n), anyVar = new BitSet(n);
+		for (int s=0; s<subsetList.size(); s++) {
+			int[] set = subsetList.get(s);
+			anyTextfield.clear();
+			anyVar.clear();
+			for (int c=0; c<numClasses; c++) {
+				succ[c].clear();
+			}
+			for (int q:set) {
+				for (int j=0; j<specificLabel[q].length; j++) {
+					int base=specificLabel[q][j]*KINDS;
+					for (int k=0; k<KINDS; k++) {
+						succ[base+k].set(specificDest[q][j]);
+					}
+				}
+				for (int d:anyTextfieldDest[q]) {
+					anyTextfield.set(d);
+				}
+				for (int d:anyVarDest[q]) {
+					anyVar.set(d);
+				}
+			}
+			for (int c=0; c<numClasses; c++) {
+				BitSet next = succ[c];
+				int kind = c%KINDS;
+				if (kind != KIND_PLAIN) {
+					next.or(anyTextfield);
+				}
+				if (kind == KIND_VAR) {
+					next.or(anyVar);
+				}
+				if (next.isEmpty()) {
+					delta.add(-1);
+					continue;
+				}
+				int[] nextSet = toArray(next);
+				IntArrayKey key = new IntArrayKey(nextSet);
+				Integer target = subsets.get(key);
+				if (target == null) {
+					if (subsetList.size() >= stateLimit || (long)(subsetList.size()+1)*numClasses > cellLimit) {
+						return null;
+					}
+					target = Integer.valueOf(subsetList.size());
+					subsets.put(key, target);
+					subsetList.add(nextSet);
+				}
+				delta.add(target.intValue());
+			}
+		}
+
+		ta.numStates = subsetList.size();
+		ta.initial = 0;
+		ta.transitions = delta.toArray();
+		ta.accept = new boolean[ta.numStates];
+		for (int s=0; s<ta.numStates; s++) {
+			for (int q:subsetList.get(s)) {
+				if (tokens.get(q).isAccept()) {
+					ta.accept[s]=true;
+					break;
+				}
+			}
+		}
+		ta.computeLiteralSensitivity();
+		return ta;
+	}
+
+	private void computeLiteralSensitivity() {
+		textfieldSensitive = new boolean[numStates];
+		varSensitive = new boolean[numStates];
+		int other = numLabels*KINDS;
+		for (int s=0; s<numStates; s++) {
+			int base = s*numClasses;
+			for (int c=0; c<other; c+=KINDS) {
+				if (transitions[base+c+KIND_TEXTFIELD] != transitions[base+other+KIND_TEXTFIELD]) {
+					textfieldSensitive[s] = true;
+				}
+				if (transitions[base+c+KIND_VAR] != transitions[base+other+KIND_VAR]) {
+					varSensitive[s] = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true if, from the given state, the successor of a token of the
+	 * given type can depend on the label of the token.
+	 */
+	public boolean isLabelSensitive(int state, int type) {
+		switch (getKind(type)) {
+			case KIND_TEXTFIELD:
+				return textfieldSensitive[state];
+			case KIND_VAR:
+				return varSensitive[state];
+			default:
+				return true;
+		}
+	}
+
+	public int getLabelClass(LexedQuery tokens, int i) {
+		return getSymbolClass(tokens.getSymbol(i));
+	}
+
+	public boolean run(List tokens) {
+		int state = initial;
+		for (int i=0, size=tokens.size(); i<size; i++) {
+			LexicalToken lt = (LexicalToken)tokens.get(i);
+			state = step(state, getSymbolClass(lt.getSymbol()), lt.getType());
+			if (state == -1) {
+				return false;
+			}
+		}
+		return accept[state];
+	}
+
+	public boolean run(LexedQuery tokens) {
+		int state = initial;
+		for (int i=0, size=tokens.size(); i<size; i++) {
+			state = step(state, getLabelClass(tokens, i), tokens.getType(i));
+			if (state == -1) {
+				return false;
+			}
+		}
+		return accept[state];
+	}
+
+	/**
+	 * Lexes and matches the query in one pass: each token moves the
+	 * automaton as soon as the lexer finds it, and the scan stops at the
+	 * first token without a transition.
+	 */
+	public boolean run(String query, StreamingLexer lexer) throws SQLLexerException {
+		Matcher m = new Matcher(query);
+		return lexer.scan(query, m) && accept[m.state];
+	}
+
+	private class Matcher implements TokenSink {
+		final String query;
+		int state = initial;
+
+		Matcher(String query) {
+			this.query = query;
+		}
+
+		public boolean token(int type, int start, int length, String label) {
+			int labelClass = label == null ? getLabelClass(query, start, length) : getLabelClass(label);
+			state = step(state, labelClass, type);
+			return state != -1;
+		}
+	}
+
+	public int step(int state, int labelClass, int type) {
+		return transitions[state*numClasses + labelClass*KINDS + getKind(type)];
+	}
+
+	public int getInitialState() {
+		return initial;
+	}
+
+	public boolean isAccept(int state) {
+		return accept[state];
+	}
+
+	public int getNumberOfStates() {
+		return numStates;
+	}
+
+	public int getNumberOfClasses() {
+		return numClasses;
+	}
+
+	static int getKind(int type) {
+		if (type == TokenTransition.VAR) {
+			return KIND_VAR;
+		} else if (TokenTransition.isTextfield(type)) {
+			return KIND_TEXTFIELD;
+		} else {
+			return KIND_PLAIN;
+		}
+	}
+
+	/**
+	 * Returns the label class of the given label, labels that do not
+	 * appear in the model all share the last class.
+	 */
+	public int getLabelClass(String label) {
+		return getSymbolClass(SymbolTable.lookup(label));
+	}
+
+	public int getLabelClass(String text, int start, int length) {
+		return getSymbolClass(SymbolTable.lookup(text, start, length));
+	}
+
+	public int getSymbolClass(int symbol) {
+		if (symbol <= 0) {
+			return numLabels;
+		}
+		int mask = symbolKeys.length-1;
+		int slot = (symbol * 0x9E3779B9 >>> 16) & mask;
+		int key;
+		while ((key = symbolKeys[slot]) != 0) {
+			if (key == symbol) {
+				return symbolClasses[slot];
+			}
+			slot = (slot+1) & mask;
+		}
+		return numLabels;
+	}
+
+	private void buildSymbolTable(int[] symbols) {
+		int size = 4;
+		while (size < symbols.length*2) {
+			size <<= 1;
+		}
+		symbolKeys = new int[size];
+		symbolClasses = new int[size];
+		for (int i=0; i<symbols.length; i++) {
+			int slot = (symbols[i] * 0x9E3779B9 >>> 16) & (size-1);
+			while (symbolKeys[slot] != 0) {
+				slot = (slot+1) & (size-1);
+			}
+			symbolKeys[slot] = symbols[i];
+			symbolClasses[slot] = i;
+		}
+	}
+
+	private static int[] toArray(BitSet set) {
+		int[] array = new int[set.cardinality()];
+		int j=0;
+		for (int i=set.nextSetBit(0); i>=0; i=set.nextSetBit(i+1)) {
+			array[j++]=i;
+		}
+		return array;
+	}
+
+	private static class IntArrayKey {
+		final int[] values;
+		final int hash;
+
+		IntArrayKey(int[] values) {
+			this.values=values;
+			this.hash=Arrays.hashCode(values);
+		}
+
+		public boolean equals(Object o) {
+			return (o instanceof IntArrayKey) && Arrays.equals(values, ((IntArrayKey)o).values);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static class IntList {
+		int[] values = new int[8];
+		int size = 0;
+
+		void add(int v) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size*2);
+			}
+			values[size++]=v;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
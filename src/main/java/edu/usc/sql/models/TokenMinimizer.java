@@ -0,0 +1,349 @@
+package edu.usc.sql.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Determinizes and minimizes a hotspot model at the token level. The
+ * alphabet is the set of (label symbol, token type) pairs of the model's
+ * transitions: whether a query token matches a transition only depends on
+ * its label and type, so a model with the same language over that alphabet
+ * accepts exactly the same queries.
+ *
+ * The subset construction is bounded, a model whose DFA would be larger
+ * than the limit is left as it is.
+ */
+class TokenMinimizer {
+	private final int stateLimit;
+
+	//letters of the alphabet, with the label and type of one of their transitions
+	private final Map<Long, Integer> letters = new HashMap<Long, Integer>();
+	private final List<TokenTransition> letterInfo = new ArrayList<TokenTransition>();
+
+	//the DFA: dfaNext[state][letter], -1 when there is no transition
+	private final List<int[]> dfaNext = new ArrayList<int[]>();
+	private final List<Boolean> dfaAccept = new ArrayList<Boolean>();
+
+	TokenMinimizer(int stateLimit) {
+		this.stateLimit = stateLimit;
+	}
+
+	/** Minimizes the model in place, returns false if it was left as it is. */
+	boolean minimize(HotspotModel model) {
+		if (!determinize(model)) {
+			return false;
+		}
+		int[] classes = refine();
+		rebuild(model, classes);
+		return true;
+	}
+
+	private int letter(TokenTransition tt) {
+		Long key = Long.valueOf(((long)tt.getSymbol() << 32) | (tt.getType() & 0xffffffffL));
+		Integer letter = letters.get(key);
+		if (letter == null) {
+			letter = Integer.valueOf(letters.size());
+			letters.put(key, letter);
+			letterInfo.add(tt);
+		}
+		return letter.intValue();
+	}
+
+	private boolean determinize(HotspotModel model) {
+		//number the states of the model and their transitions by letter
+		Map<Token, Integer> index = new IdentityHashMap<Token, Integer>();
+		List<Token> tokens = new ArrayList<Token>();
+		LinkedList<Token> worklist = new LinkedList<Token>();
+		index.put(model.getInitialState(), Integer.valueOf(0));
+		tokens.add(model.getInitialState());
+		worklist.add(model.getInitialState());
+		while (!worklist.isEmpty()) {
+			Token t = worklist.removeFirst();
+			for (Object o:t.getOutTransitions()) {
+				TokenTransition tt = (TokenTransition)o;
+				letter(tt);
+				if (!index.containsKey(tt.getDest())) {
+					index.put(tt.getDest(), Integer.valueOf(tokens.size()));
+					tokens.add(tt.getDest());
+					worklist.add(tt.getDest());
+				}
+			}
+		}
+		int n = tokens.size();
+		int numLetters = letters.size();
+		int[][] outLetter = new int[n][];
+		int[][] outDest = new int[n][];
+		for (int i=0; i<n; i++) {
+			Set out = tokens.get(i).getOutTransitions();
+			outLetter[i] = new int[out.size()];
+			outDest[i] = new int[out.size()];
+			int k = 0;
+			for (Object o:out) {
+				TokenTransition tt = (TokenTransition)o;
+				outLetter[i][k] = letter(tt);
+				outDest[i][k++] = index.get(tt.getDest()).intValue();
+			}
+		}
+
+		//subset construction, subsets are sorted arrays of model states
+		Map<SubsetKey, Integer> subsets = new HashMap<SubsetKey, Integer>();
+		List<int[]> pending = new ArrayList<int[]>();
+		int[] initial = {0};
+		subsets.put(new SubsetKey(initial), Integer.valueOf(0));
+		pending.add(initial);
+		BitSetList[] successors = new BitSetList[numLetters];
+		for (int l=0; l<numLetters; l++) {
+			successors[l] = new BitSetList(n);
+		}
+		for (int s=0; s<pending.size(); s++) {
+			int[] subset = pending.get(s);
+			boolean accept = false;
+			for (int state:subset) {
+				accept |= tokens.get(state).isAccept();
+				for (int k=0; k<outLetter[state].length; k++) {
+					successors[outLetter[state][k]].add(outDest[state][k]);
+				}
+			}
+			int[] next = new int[numLetters];
+			for (int l=0; l<numLetters; l++) {
+				if (successors[l].isEmpty()) {
+					next[l] = -1;
+					continue;
+				}
+				int[] dest = successors[l].toSortedArray();
+				successors[l].clear();
+				SubsetKey key = new SubsetKey(dest);
+				Integer d = subsets.get(key);
+				if (d == null) {
+					if (subsets.size() >= stateLimit) {
+						return false;
+					}
+					d = Integer.valueOf(subsets.size());
+					subsets.put(key, d);
+					pending.add(dest);
+				}
+				next[l] = d.intValue();
+			}
+			dfaNext.add(next);
+			dfaAccept.add(Boolean.valueOf(accept));
+		}
+		return true;
+	}
+
+	//Moore's partition refinement, returns the class of every DFA state. The
+	//signature of a state is its class and the letters and classes of its
+	//defined transitions, so a round costs O(states + transitions).
+	private int[] refine() {
+		int n = dfaNext.size();
+		//the defined transitions of state s are edges start[s] to start[s+1]-1, by letter
+		int[] start = new int[n+1];
+		for (int s=0; s<n; s++) {
+			int defined = 0;
+			for (int d:dfaNext.get(s)) {
+				if (d != -1) {
+					defined++;
+				}
+			}
+			start[s+1] = start[s] + defined;
+		}
+		int[] edgeLetter = new int[start[n]];
+		int[] edgeDest = new int[start[n]];
+		for (int s=0; s<n; s++) {
+			int[] next = dfaNext.get(s);
+			int e = start[s];
+			for (int l=0; l<next.length; l++) {
+				if (next[l] != -1) {
+					edgeLetter[e] = l;
+					edgeDest[e++] = next[l];
+				}
+			}
+		}
+
+		int[] classes = new int[n];
+		for (int s=0; s<n; s++) {
+			classes[s] = dfaAccept.get(s).booleanValue() ? 1 : 0;
+		}
+		int[] refined = new int[n];
+		//open addressing table of the first state of each signature, plus one
+		int[] table = new int[Integer.highestOneBit(Math.max(n, 1)) << 2];
+		int mask = table.length - 1;
+		int numClasses = -1;
+		while (true) {
+			Arrays.fill(table, 0);
+			int count = 0;
+			for (int s=0; s<n; s++) {
+				int h = classes[s];
+				for (int e=start[s]; e<start[s+1]; e++) {
+					h = (h*31 + edgeLetter[e])*31 + classes[edgeDest[e]];
+				}
+				int i = (h ^ (h >>> 16)) & mask;
+				while (table[i] != 0 && !sameSignature(table[i]-1, s, classes, start, edgeLetter, edgeDest)) {
+					i = (i+1) & mask;
+				}
+				if (table[i] == 0) {
+					table[i] = s+1;
+					refined[s] = count++;
+				} else {
+					refined[s] = refined[table[i]-1];
+				}
+			}
+			int[] t = classes;
+			classes = refined;
+			refined = t;
+			if (count == numClasses) {
+				return classes;
+			}
+			numClasses = count;
+		}
+	}
+
+	private static boolean sameSignature(int a, int b, int[] classes, int[] start, int[] edgeLetter, int[] edgeDest) {
+		if (classes[a] != classes[b] || start[a+1]-start[a] != start[b+1]-start[b]) {
+			return false;
+		}
+		for (int ea=start[a], eb=start[b]; ea<start[a+1]; ea++, eb++) {
+			if (edgeLetter[ea] != edgeLetter[eb] || classes[edgeDest[ea]] != classes[edgeDest[eb]]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rebuild(HotspotModel model, int[] classes) {
+		int n = dfaNext.size();
+		int numClasses = 0;
+		for (int s=0; s<n; s++) {
+			numClasses = Math.max(numClasses, classes[s]+1);
+		}
+		//one DFA state per class stands for it
+		int[] representative = new int[numClasses];
+		Arrays.fill(representative, -1);
+		for (int s=0; s<n; s++) {
+			if (representative[classes[s]] == -1) {
+				representative[classes[s]] = s;
+			}
+		}
+
+		//classes from which an accept state can be reached, the others are dead
+		List<List<Integer>> reverse = new ArrayList<List<Integer>>();
+		for (int c=0; c<numClasses; c++) {
+			reverse.add(new ArrayList<Integer>());
+		}
+		LinkedList<Integer> worklist = new LinkedList<Integer>();
+		boolean[] live = new boolean[numClasses];
+		for (int c=0; c<numClasses; c++) {
+			for (int d:dfaNext.get(representative[c])) {
+				if (d != -1) {
+					reverse.get(classes[d]).add(Integer.valueOf(c));
+				}
+			}
+			if (dfaAccept.get(representative[c]).booleanValue()) {
+				live[c] = true;
+				worklist.add(Integer.valueOf(c));
+			}
+		}
+		while (!worklist.isEmpty()) {
+			for (Integer c:reverse.get(worklist.removeFirst().intValue())) {
+				if (!live[c.intValue()]) {
+					live[c.intValue()] = true;
+					worklist.add(c);
+				}
+			}
+		}
+
+		Set<HotspotToken> states = new HashSet<HotspotToken>();
+		Set<TokenTransition> transitions = new HashSet<TokenTransition>();
+		HotspotToken[] tokens = new HotspotToken[numClasses];
+		int id = 0;
+		for (int c=0; c<numClasses; c++) {
+			if (live[c] || c == classes[0]) {
+				tokens[c] = new HotspotToken(id++);
+				tokens[c].setAccept(dfaAccept.get(representative[c]).booleanValue());
+				states.add(tokens[c]);
+			}
+		}
+		HotspotToken initial = tokens[classes[0]];
+		initial.setInitial();
+		for (int c=0; c<numClasses; c++) {
+			if (tokens[c] == null) {
+				continue;
+			}
+			int[] next = dfaNext.get(representative[c]);
+			for (int l=0; l<next.length; l++) {
+				if (next[l] == -1 || !live[classes[next[l]]]) {
+					continue;
+				}
+				TokenTransition info = letterInfo.get(l);
+				HotspotToken dest = tokens[classes[next[l]]];
+				TokenTransition tt = new TokenTransition(tokens[c], dest, info.getLabel(), info.getType());
+				transitions.add(tt);
+				tokens[c].addOutTransition(tt);
+				dest.addInTransition(tt);
+			}
+		}
+		model.replace(states, transitions, initial);
+	}
+
+	private static class SubsetKey {
+		final int[] states;
+		final int hash;
+
+		SubsetKey(int[] states) {
+			this.states = states;
+			this.hash = Arrays.hashCode(states);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof SubsetKey && Arrays.equals(states, ((SubsetKey)o).states);
+		}
+	}
+
+	//set of model states with a list of its members, cleared in O(size)
+	private static class BitSetList {
+		final boolean[] member;
+		int[] list = new int[4];
+		int size = 0;
+
+		BitSetList(int capacity) {
+			member = new boolean[capacity];
+		}
+
+		void add(int state) {
+			if (!member[state]) {
+				member[state] = true;
+				if (size == list.length) {
+					list = Arrays.copyOf(list, size*2);
+				}
+				list[size++] = state;
+			}
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		int[] toSortedArray() {
+			int[] a = Arrays.copyOf(list, size);
+			Arrays.sort(a);
+			return a;
+		}
+
+		void clear() {
+			for (int i=0; i<size; i++) {
+				member[list[i]] = false;
+			}
+			size = 0;
+		}
+	}
+}
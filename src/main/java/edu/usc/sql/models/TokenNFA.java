@@ -0,0 +1,322 @@
+package edu.usc.sql.models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import edu.usc.sql.amnesia.lexer.LexedQuery;
+import edu.usc.sql.amnesia.lexer.LexicalToken;
+import edu.usc.sql.amnesia.lexer.SQLLexerException;
+import edu.usc.sql.amnesia.lexer.StreamingLexer;
+import edu.usc.sql.amnesia.lexer.TokenSink;
+
+/**
+ * Matcher for models that are too large to be compiled to a TokenAutomaton.
+ * Instead of trying the transitions of the model one path at a time, the
+ * query is run on the set of states the model can be in after each token.
+ * A state is added at most once per token, so a query of n tokens takes
+ * O(n * transitions) steps however ambiguous the model is, where following
+ * every path can take time exponential in n.
+ *
+ * The active states are kept in sparse sets: adding and testing a state and
+ * clearing the set are constant time, and iterating only visits the active
+ * states, which are usually few even in large models.
+ */
+public class TokenNFA {
+	private static final int[] NONE = new int[0];
+	private static final TokenTransition[] NO_TRANSITIONS = new TokenTransition[0];
+
+	private int numStates;
+	private boolean[] accept;
+	//open addressing map from (state, label symbol) to destination states
+	private long[] keys;
+	private int[][] dests;
+	//per state: destinations of VAR transitions, matched by any textfield token
+	private int[][] anyTextfield;
+	//per state: destinations of textfield transitions, matched by any VAR token
+	private int[][] anyVar;
+	//per state: transitions without a label symbol, checked with matches()
+	private TokenTransition[][] unindexed;
+	private int[][] unindexedDest;
+
+	private static final ThreadLocal<StateSet[]> workSets = new ThreadLocal<StateSet[]>() {
+		protected StateSet[] initialValue() {
+			return new StateSet[] {new StateSet(64), new StateSet(64)};
+		}
+	};
+
+	public static TokenNFA compile(HotspotModel model) {
+		TokenNFA nfa = new TokenNFA();
+
+		//number the states of the model, the initial state is 0
+		Map<Token, Integer> index = new IdentityHashMap<Token, Integer>();
+		List<Token> tokens = new ArrayList<Token>();
+		LinkedList<Token> worklist = new LinkedList<Token>();
+		index.put(model.getInitialState(), Integer.valueOf(0));
+		tokens.add(model.getInitialState());
+		worklist.add(model.getInitialState());
+		int numTransitions = 0;
+		while (!worklist.isEmpty()) {
+			Token t = worklist.removeFirst();
+			for (Object o:t.getOutTransitions()) {
+				TokenTransition tt = (TokenTransition)o;
+				numTransitions++;
+				if (!index.containsKey(tt.getDest())) {
+					index.put(tt.getDest(), Integer.valueOf(tokens.size()));
+					tokens.add(tt.getDest());
+					worklist.add(tt.getDest());
+				}
+			}
+		}
+
+		int n = tokens.size();
+		nfa.numStates = n;
+		nfa.accept = new boolean[n];
+		int size = 2;
+		while (size < numTransitions*2) {
+			size <<= 1;
+		}
+		nfa.keys = new long[size];
+		nfa.dests = new int[size][];
+		nfa.anyTextfield = new int[n][];
+		nfa.anyVar = new int[n][];
+		nfa.unindexed = new TokenTransition[n][];
+		nfa.unindexedDest = new int[n][];
+		for (int i=0; i<n; i++) {
+			Token t = tokens.get(i);
+			nfa.accept[i] = t.isAccept();
+			int[] textfield = NONE, var = NONE, unindexedDest = NONE;
+			TokenTransition[] unindexed = NO_TRANSITIONS;
+			for (Object o:t.getOutTransitions()) {
+				TokenTransition tt = (TokenTransition)o;
+				int dest = index.get(tt.getDest()).intValue();
+				int symbol = tt.getSymbol();
+				if (symbol <= 0) {
+					unindexed = Arrays.copyOf(unindexed, unindexed.length+1);
+					unindexed[unindexed.length-1] = tt;
+					unindexedDest = append(unindexedDest, dest);
+					continue;
+				}
+				int slot = nfa.slot(i, symbol);
+				nfa.keys[slot] = key(i, symbol);
+				nfa.dests[slot] = append(nfa.dests[slot] == null ? NONE : nfa.dests[slot], dest);
+				if (tt.getType() == TokenTransition.VAR) {
+					textfield = append(textfield, dest);
+				}
+				if (tt.isTextfield()) {
+					var = append(var, dest);
+				}
+			}
+			nfa.anyTextfield[i] = textfield;
+			nfa.anyVar[i] = var;
+			nfa.unindexed[i] = unindexed;
+			nfa.unindexedDest[i] = unindexedDest;
+		}
+		return nfa;
+	}
+
+	private static int[] append(int[] array, int v) {
+		int[] bigger = Arrays.copyOf(array, array.length+1);
+		bigger[array.length] = v;
+		return bigger;
+	}
+
+	private static long key(int state, int symbol) {
+		return ((long)state << 32) | symbol;
+	}
+
+	//slot of the key, or the empty slot where it would go
+	private int slot(int state, int symbol) {
+		long key = key(state, symbol);
+		int mask = keys.length-1;
+		int slot = (int)((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+		while (keys[slot] != 0 && keys[slot] != key) {
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	//adds the destinations of the indexed transitions matching the token
+	private void step(int state, int symbol, int type, StateSet next) {
+		if (symbol > 0) {
+			int[] d = dests[slot(state, symbol)];
+			if (d != null) {
+				next.addAll(d);
+			}
+		}
+		if (TokenTransition.isTextfield(type)) {
+			next.addAll(anyTextfield[state]);
+		}
+		if (type == TokenTransition.VAR) {
+			next.addAll(anyVar[state]);
+		}
+	}
+
+	private StateSet[] start() {
+		StateSet[] sets = workSets.get();
+		sets[0].reset(numStates);
+		sets[1].reset(numStates);
+		sets[0].add(0);
+		return sets;
+	}
+
+	private boolean accepts(StateSet current) {
+		for (int k=0; k<current.size; k++) {
+			if (accept[current.dense[k]]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean run(LexedQuery tokens) {
+		StateSet[] sets = start();
+		StateSet current = sets[0], next = sets[1];
+		for (int i=0, size=tokens.size(); i<size; i++) {
+			int type = tokens.getType(i);
+			int symbol = tokens.getSymbol(i);
+			next.clear();
+			for (int k=0; k<current.size; k++) {
+				int state = current.dense[k];
+				step(state, symbol, type, next);
+				TokenTransition[] u = unindexed[state];
+				for (int j=0; j<u.length; j++) {
+					if (u[j].matches(tokens, i)) {
+						next.add(unindexedDest[state][j]);
+					}
+				}
+			}
+			if (next.size == 0) {
+				return false;
+			}
+			StateSet swap = current;
+			current = next;
+			next = swap;
+		}
+		return accepts(current);
+	}
+
+	public boolean run(List tokens) {
+		StateSet[] sets = start();
+		StateSet current = sets[0], next = sets[1];
+		for (int i=0, size=tokens.size(); i<size; i++) {
+			LexicalToken lt = (LexicalToken)tokens.get(i);
+			int type = lt.getType();
+			int symbol = lt.getSymbol();
+			next.clear();
+			for (int k=0; k<current.size; k++) {
+				int state = current.dense[k];
+				step(state, symbol, type, next);
+				TokenTransition[] u = unindexed[state];
+				for (int j=0; j<u.length; j++) {
+					if (u[j].matches(lt)) {
+						next.add(unindexedDest[state][j]);
+					}
+				}
+			}
+			if (next.size == 0) {
+				return false;
+			}
+			StateSet swap = current;
+			current = next;
+			next = swap;
+		}
+		return accepts(current);
+	}
+
+	/**
+	 * Lexes and matches the query in one pass, the scan stops as soon as no
+	 * state of the model is left.
+	 */
+	public boolean run(String query, StreamingLexer lexer) throws SQLLexerException {
+		Matcher m = new Matcher(query, start());
+		return lexer.scan(query, m) && accepts(m.current);
+	}
+
+	private class Matcher implements TokenSink {
+		final String query;
+		StateSet current, next;
+
+		Matcher(String query, StateSet[] sets) {
+			this.query = query;
+			current = sets[0];
+			next = sets[1];
+		}
+
+		public boolean token(int type, int start, int length, String label) {
+			int symbol = label == null ? SymbolTable.lookup(query, start, length) : SymbolTable.lookup(label);
+			next.clear();
+			for (int k=0; k<current.size; k++) {
+				int state = current.dense[k];
+				step(state, symbol, type, next);
+				TokenTransition[] u = unindexed[state];
+				if (u.length > 0 && label == null) {
+					label = query.substring(start, start+length);
+				}
+				for (int j=0; j<u.length; j++) {
+					if (u[j].matches(label, type)) {
+						next.add(unindexedDest[state][j]);
+					}
+				}
+			}
+			StateSet swap = current;
+			current = next;
+			next = swap;
+			return current.size > 0;
+		}
+	}
+
+	public int getNumberOfStates() {
+		return numStates;
+	}
+
+	/**
+	 * Set of states from 0 to capacity-1. dense holds the members in the
+	 * order they were added, sparse the position of each member in dense;
+	 * sparse is never cleared, a stale entry is told apart by checking it
+	 * against dense.
+	 */
+	static class StateSet {
+		int[] dense;
+		int[] sparse;
+		int size;
+
+		StateSet(int capacity) {
+			dense = new int[capacity];
+			sparse = new int[capacity];
+		}
+
+		void reset(int capacity) {
+			if (sparse.length < capacity) {
+				dense = new int[capacity];
+				sparse = new int[capacity];
+			}
+			size = 0;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		boolean contains(int state) {
+			int p = sparse[state];
+			return p < size && dense[p] == state;
+		}
+
+		void add(int state) {
+			if (!contains(state)) {
+				sparse[state] = size;
+				dense[size++] = state;
+			}
+		}
+
+		void addAll(int[] states) {
+			for (int i=0; i<states.length; i++) {
+				add(states[i]);
+			}
+		}
+	}
+}
@@ -7,8 +7,12 @@
 
 package edu.usc.sql.models;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import edu.usc.sql.amnesia.lexer.LexedQuery;
 import edu.usc.sql.amnesia.lexer.LexicalToken;
 
 
@@ -28,7 +32,7 @@ public class TokenTransition implements Serializable {
     public static final int WHITESPACE=10;
     public static final int COMMENT=11;
 	
-    private static int globalID=0;
+    private static final AtomicInteger globalID=new AtomicInteger();
 	
 	protected String label;
 	protected int type;
@@ -37,6 +41,9 @@ public class TokenTransition implements Serializable {
 	protected Token source;
 	protected Token dest;
 	protected long val=0;
+	//symbol of the label and case insensitive hash of the label, 0 until computed
+	protected transient int symbol=0;
+	protected transient int labelHash=0;
 
 	
     public TokenTransition() {
@@ -57,12 +64,16 @@ public class TokenTransition implements Serializable {
         this.label=label;
         this.type=type;
         this.stringIndex=stringIndex;
-        id=globalID;
-        globalID++; 
+        id=globalID.getAndIncrement();
         if ((source==null) || (dest==null) || (label==null)) {throw new RuntimeException();}
+        getSymbol();
     }
     
 	public boolean isTextfield() {
+		return isTextfield(type);
+	}
+
+	public static boolean isTextfield(int type) {
 		return ((type==VAR) || (type == TEXTFIELD) || (type==STRING) || (type==SCONSTANT) || (type==NCONSTANT));
 	}
 	
@@ -97,15 +108,88 @@ public class TokenTransition implements Serializable {
     public int getID() {
         return id;
     }
+
+    /**
+     * Returns the symbol of the label in the SymbolTable, or
+     * SymbolTable.NO_SYMBOL if the label has none.
+     */
+    public int getSymbol() {
+        if (symbol == 0) {
+            symbol = symbolFor(label);
+        }
+        return symbol;
+    }
+
+    //labels of deserialized models are interned right away, so that query
+    //tokens looked up afterwards see them
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (label != null) {
+            getSymbol();
+        }
+    }
+
+    /** Model labels are interned, see QueryTokenTransition. */
+    protected int symbolFor(String l) {
+        return SymbolTable.intern(l);
+    }
+
+    private int getLabelHash() {
+        if (labelHash == 0) {
+            labelHash = SymbolTable.hash(label, 0, label.length());
+        }
+        return labelHash;
+    }
+
+    /**
+     * Returns true if the labels are equal ignoring case. Compares symbols
+     * when both labels have one.
+     */
+    boolean sameLabel(int tSymbol, String tLabel) {
+        int s = getSymbol();
+        if (s > 0 && tSymbol > 0) {
+            return s == tSymbol;
+        }
+        return label.equalsIgnoreCase(tLabel);
+    }
     
 	public boolean matches(TokenTransition t) {
-		boolean varMatch = (((type==VAR) && (t.isTextfield())) || ((t.getType()==VAR) && (isTextfield())));
+		int tType = t.getType();
+		if (((type==VAR) && (isTextfield(tType))) || ((tType==VAR) && (isTextfield()))) {
+			return true;
+		}
+		return sameLabel(t.getSymbol(), t.getLabel());
+	}
+
+	public boolean matches(LexicalToken lt) {
+		int tType = lt.getType();
+		if (((type==VAR) && (isTextfield(tType))) || ((tType==VAR) && (isTextfield()))) {
+			return true;
+		}
+		return sameLabel(lt.getSymbol(), lt.getLabel());
+	}
+
+	public boolean matches(LexedQuery query, int index) {
+		int tType = query.getType(index);
+		if (((type==VAR) && (isTextfield(tType))) || ((tType==VAR) && (isTextfield()))) {
+			return true;
+		}
+		int tSymbol = query.getSymbol(index);
+		int s = getSymbol();
+		if (s > 0 && tSymbol > 0) {
+			return s == tSymbol;
+		}
+		return query.labelEqualsIgnoreCase(index, label);
+	}
+
+	public boolean matches(String tLabel, int tType) {
+		boolean varMatch = (((type==VAR) && (isTextfield(tType))) || ((tType==VAR) && (isTextfield())));
         if (varMatch) {
             return true;
         } else {
             //boolean typeMatch = (type == t.getType());
             boolean typeMatch=true;
-            boolean labelMatch = label.equalsIgnoreCase(t.getLabel());
+            boolean labelMatch = label.equalsIgnoreCase(tLabel);
             if (typeMatch && labelMatch) {
                 return true;
             } else {
@@ -119,7 +203,7 @@ public class TokenTransition implements Serializable {
 		if (o instanceof TokenTransition) {
 			TokenTransition t = (TokenTransition)o;
 			if ((t!=null) && (dest != null) && (source != null) && (label!=null)) {
-				if ((dest.id == t.dest.id) && (label.equalsIgnoreCase(t.label)) && (source.id == t.source.id) ) {
+				if ((dest.id == t.dest.id) && (source.id == t.source.id) && (t.label != null) && sameLabel(t.getSymbol(), t.label)) {
 					return true;
 				} else {
 					return false;
@@ -138,7 +222,7 @@ public class TokenTransition implements Serializable {
 		if ((dest==null) || (label==null)) {
 			return 0;
 		} else {
-			return (dest.id + label.hashCode());
+			return (dest.id + getLabelHash());
 		}
 	}
 	
@@ -0,0 +1,123 @@
+package edu.usc.sql.models;
+
+import java.util.Collection;
+
+/**
+ * Outgoing transitions of a state indexed for matching query tokens. A
+ * query token with label symbol s and type t matches:
+ *
+ * - the transitions in get(s), except those that are also in one of the
+ *   two kind buckets below for type t (see inKindBucket)
+ * - the VAR transitions in getAnyTextfield(), if t is a textfield type
+ * - the textfield transitions in getAnyVar(), except VAR ones, if t is VAR
+ * - the transitions in getUnindexed() for which matches() is true
+ *
+ * so that every matching transition is found exactly once, without
+ * scanning the others.
+ */
+class TransitionIndex {
+	static final TokenTransition[] EMPTY = new TokenTransition[0];
+
+	//open addressing map from label symbol to the transitions with that label
+	private final int[] keys;
+	private final TokenTransition[][] values;
+	private final TokenTransition[] anyTextfield;
+	private final TokenTransition[] anyVar;
+	private final TokenTransition[] unindexed;
+
+	TransitionIndex(Collection<TokenTransition> transitions) {
+		int n = transitions.size();
+		int size = 2;
+		while (size < n*2) {
+			size <<= 1;
+		}
+		keys = new int[size];
+		values = new TokenTransition[size][];
+		int numTextfield = 0, numVar = 0, numUnindexed = 0;
+		for (TokenTransition tt:transitions) {
+			int symbol = tt.getSymbol();
+			if (symbol <= 0) {
+				numUnindexed++;
+				continue;
+			}
+			int slot = slot(symbol);
+			values[slot] = append(values[slot], tt);
+			keys[slot] = symbol;
+			if (tt.getType() == TokenTransition.VAR) {
+				numTextfield++;
+			}
+			if (tt.isTextfield()) {
+				numVar++;
+			}
+		}
+		anyTextfield = numTextfield == 0 ? EMPTY : new TokenTransition[numTextfield];
+		anyVar = numVar == 0 ? EMPTY : new TokenTransition[numVar];
+		unindexed = numUnindexed == 0 ? EMPTY : new TokenTransition[numUnindexed];
+		numTextfield = numVar = numUnindexed = 0;
+		for (TokenTransition tt:transitions) {
+			if (tt.getSymbol() <= 0) {
+				unindexed[numUnindexed++] = tt;
+				continue;
+			}
+			if (tt.getType() == TokenTransition.VAR) {
+				anyTextfield[numTextfield++] = tt;
+			}
+			if (tt.isTextfield()) {
+				anyVar[numVar++] = tt;
+			}
+		}
+	}
+
+	//slot of the symbol, or the empty slot where it would go
+	private int slot(int symbol) {
+		int mask = keys.length-1;
+		int slot = (symbol * 0x9E3779B9 >>> 16) & mask;
+		while (keys[slot] != 0 && keys[slot] != symbol) {
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+
+	private static TokenTransition[] append(TokenTransition[] array, TokenTransition tt) {
+		if (array == null) {
+			return new TokenTransition[] {tt};
+		}
+		TokenTransition[] bigger = new TokenTransition[array.length+1];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		bigger[array.length] = tt;
+		return bigger;
+	}
+
+	/** Transitions whose label has the given symbol. */
+	TokenTransition[] get(int symbol) {
+		if (symbol <= 0) {
+			return EMPTY;
+		}
+		TokenTransition[] v = values[slot(symbol)];
+		return v == null ? EMPTY : v;
+	}
+
+	/** VAR transitions, they match any textfield query token. */
+	TokenTransition[] getAnyTextfield() {
+		return anyTextfield;
+	}
+
+	/** Textfield transitions, they match any VAR query token. */
+	TokenTransition[] getAnyVar() {
+		return anyVar;
+	}
+
+	/** Transitions without a label symbol, checked with matches(). */
+	TokenTransition[] getUnindexed() {
+		return unindexed;
+	}
+
+	/**
+	 * Returns true if tt is matched by a query token of the given type
+	 * through one of the kind buckets, whatever their labels.
+	 */
+	static boolean inKindBucket(TokenTransition tt, int queryType) {
+		return (tt.getType() == TokenTransition.VAR && TokenTransition.isTextfield(queryType))
+			|| (queryType == TokenTransition.VAR && tt.isTextfield());
+	}
+}
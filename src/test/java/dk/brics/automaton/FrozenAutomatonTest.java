@@ -0,0 +1,108 @@
+package dk.brics.automaton;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link FrozenAutomaton} and the operations that read it,
+ * {@link LazyAutomaton} and {@link Automaton#getSubsetCounterexample},
+ * with the {@link State} and {@link Transition} based operations on
+ * random small automata.
+ */
+public class FrozenAutomatonTest {
+
+    private Random random = new Random(42);
+
+    @Test
+    public void roundTrip()
+    {
+	for (int i = 0; i<2000; i++) {
+	    Automaton a = i%10==0 ? Automaton.makeString(randomString()) : randomAutomaton();
+	    FrozenAutomaton f = new FrozenAutomaton(a);
+	    Automaton b = f.toAutomaton();
+	    assertEquals(a.getNumberOfStates(), f.getNumberOfStates());
+	    assertEquals(a.getNumberOfTransitions(), f.getNumberOfTransitions());
+	    assertEquals(a.getNumberOfStates(), b.getNumberOfStates());
+	    assertEquals(a.getNumberOfTransitions(), b.getNumberOfTransitions());
+	    assertEquals(a.isDeterministic(), b.isDeterministic());
+	    Automaton e = f.explicit().toAutomaton();
+	    assertFalse(e.isSingleton());
+	    for (int k = 0; k<20; k++) {
+		String s = randomString();
+		assertEquals(s, a.run(s), b.run(s));
+		assertEquals(s, a.run(s), e.run(s));
+	    }
+	}
+    }
+
+    @Test
+    public void lazyRun()
+    {
+	for (int i = 0; i<2000; i++) {
+	    Automaton a = i%10==0 ? Automaton.makeString(randomString()) : randomAutomaton();
+	    LazyAutomaton l = new LazyAutomaton(a);
+	    LazyAutomaton bounded = new LazyAutomaton(a, 2);
+	    for (int k = 0; k<20; k++) {
+		String s = randomString();
+		assertEquals(s, a.run(s), l.run(s));
+		assertEquals(s, a.run(s), bounded.run(s));
+	    }
+	}
+    }
+
+    @Test
+    public void subsetCounterexample()
+    {
+	for (int i = 0; i<2000; i++) {
+	    Automaton a = i%10==0 ? Automaton.makeString(randomString()) : randomAutomaton();
+	    Automaton b = i%7==0 ? (Automaton) a.clone() : randomAutomaton();
+	    boolean subset = a.intersection(b.complement()).isEmpty();
+	    String c = a.getSubsetCounterexample(b);
+	    if (subset)
+		assertNull(c);
+	    else {
+		assertTrue(c!=null);
+		assertTrue(c, a.run(c));
+		assertFalse(c, b.run(c));
+	    }
+	}
+    }
+
+    private Automaton randomAutomaton()
+    {
+	int n = 1 + random.nextInt(7);
+	State[] s = new State[n];
+	for (int i = 0; i<n; i++) {
+	    s[i] = new State();
+	    s[i].setAccept(random.nextInt(3)==0);
+	}
+	for (int i = 0; i<n; i++) {
+	    int m = random.nextInt(4);
+	    for (int j = 0; j<m; j++) {
+		char lo = (char) ('a' + random.nextInt(4));
+		char hi = (char) (lo + random.nextInt(3));
+		s[i].addTransition(new Transition(lo, hi, s[random.nextInt(n)]));
+	    }
+	}
+	Automaton a = new Automaton();
+	a.setInitialState(s[0]);
+	a.setDeterministic(false);
+	a.restoreInvariant();
+	return a;
+    }
+
+    private String randomString()
+    {
+	StringBuilder b = new StringBuilder();
+	int n = random.nextInt(6);
+	for (int i = 0; i<n; i++)
+	    b.append((char) ('a' + random.nextInt(7)));
+	return b.toString();
+    }
+}
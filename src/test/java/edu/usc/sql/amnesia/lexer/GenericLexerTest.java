@@ -0,0 +1,179 @@
+package edu.usc.sql.amnesia.lexer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.usc.sql.models.TokenTransition;
+
+/**
+ * Compares the token streams of GenericLexer, through each of its APIs,
+ * with those of the original string-concatenating lexer, which is kept
+ * below as the reference. The verdicts of the monitors depend on every
+ * token, including the quirks of the original around quotes, backslashes
+ * and labels that continue across an opening quote.
+ */
+public class GenericLexerTest {
+
+    private static final String[] CORPUS = {
+        "",
+        " ",
+        "SELECT * FROM t WHERE a=1",
+        "SELECT * FROM t WHERE name='bob'",
+        "SELECT * FROM t WHERE name=''",
+        "SELECT * FROM t WHERE name='' OR 1=1",
+        "'",
+        "''",
+        "'''",
+        "'unterminated",
+        "name='o\\'brien'",
+        "name='a\\\\b'",
+        "name='a\\b'",
+        "name='a\\bc' OR 'x'='x'",
+        "name='\\'",
+        "name='\\''",
+        "\\'a'",
+        "a\\b",
+        "ab'cd'ef",
+        "ab'cd",
+        "ab''cd",
+        "x='50%'",
+        "x='%'",
+        "x='%%a%'",
+        "x LIKE 'a%b' AND y<=2",
+        "a%b",
+        "f(x,y)-g(\"z\");",
+        "t.c!=1",
+        "SELECT \u00e9t\u00e9 FROM t WHERE x='\u00fcber'",
+        "x='a\u2019b'",
+    };
+
+    private static final String ALPHABET = "abcXYZ019 '\\%=<>!(),\"*+-;._\u00e9\u4e00";
+
+    @Test
+    public void corpus() throws Exception {
+        for (String query:CORPUS) {
+            check(query);
+        }
+    }
+
+    @Test
+    public void randomQueries() throws Exception {
+        Random random = new Random(4);
+        for (int i=0; i<20000; i++) {
+            StringBuilder query = new StringBuilder();
+            int length = random.nextInt(24);
+            for (int j=0; j<length; j++) {
+                query.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            check(query.toString());
+        }
+    }
+
+    private static void check(String query) throws Exception {
+        List<String> expected = describe(new ReferenceLexer().lexQuery(query));
+        GenericLexer lexer = new GenericLexer();
+
+        assertEquals(query, expected, describe(lexer.lexQuery(query)));
+
+        LexedQuery lexed = new LexedQuery();
+        lexer.lexQuery(query, lexed);
+        List<String> arrays = new ArrayList<String>();
+        for (int i=0; i<lexed.size(); i++) {
+            arrays.add(describe(lexed.getType(i), lexed.getLabel(i), lexed.getStringIndex(i)));
+        }
+        assertEquals(query, expected, arrays);
+
+        final List<String> streamed = new ArrayList<String>();
+        final String q = query;
+        lexer.scan(query, new TokenSink() {
+            public boolean token(int type, int start, int length, String label) {
+                String l = label != null ? label : q.substring(start, start+length);
+                //string constants are indexed by their last character
+                streamed.add(describe(type, l, type == TokenTransition.SCONSTANT ? start+length-1 : start));
+                return true;
+            }
+        });
+        assertEquals(query, expected, streamed);
+    }
+
+    private static List<String> describe(List tokens) {
+        List<String> result = new ArrayList<String>();
+        for (Object o:tokens) {
+            LexicalToken t = (LexicalToken)o;
+            result.add(describe(t.getType(), t.getLabel(), t.getStringIndex()));
+        }
+        return result;
+    }
+
+    private static String describe(int type, String label, int index) {
+        return type + ":" + label + "@" + index;
+    }
+
+    /** The lexer as it was before the array-based rewrite. */
+    private static class ReferenceLexer {
+        private static final Set ops = new HashSet(Arrays.asList(new String[] {
+            "=", "<", ">", "<=", ">=", "!=", "!", ")", "(", ",", "\"", "*", "+", "-", "%", "'", ";", ".", " "}));
+
+        List lexQuery(String queryString) {
+            List tokens = new ArrayList();
+            String currLabel="";
+            int currTokenType=TokenTransition.NONE;
+            boolean foundSlash=false;
+            boolean inQuote=false;
+
+            for (int i=0; i<queryString.length(); i++) {
+                char c = queryString.charAt(i);
+
+                if ((c == '\\') && (inQuote) && !foundSlash) {
+                    foundSlash=true;
+                    continue;
+                }
+                if ((c=='\'') && !foundSlash) {
+                    if (inQuote) {
+                        if (!currLabel.equals("")) {
+                            tokens.add(new LexicalToken(currLabel, TokenTransition.SCONSTANT, i-1));
+                            currLabel="";
+                        }
+                        tokens.add(new LexicalToken("'", TokenTransition.QUOTE, i));
+                        inQuote=false;
+                        currTokenType=TokenTransition.QUOTE;
+                    } else {
+                        tokens.add(new LexicalToken("'", TokenTransition.QUOTE, i));
+                        inQuote=true;
+                        currTokenType=TokenTransition.TEXTFIELD;
+                    }
+                } else {
+                    if (inQuote && c != '%') {
+                        currLabel+=String.valueOf(c);
+                        currTokenType=TokenTransition.TEXTFIELD;
+                        if (c=='\'') {foundSlash=false;}
+                    } else if (ops.contains(String.valueOf(c))) {
+                        if (currTokenType==TokenTransition.TEXTFIELD) {
+                            if (!currLabel.equals("")) {
+                                tokens.add(new LexicalToken(currLabel, TokenTransition.SCONSTANT, i-1));
+                                currLabel="";
+                            }
+                        }
+                        tokens.add(new LexicalToken(String.valueOf(c), TokenTransition.OP, i));
+                        currTokenType=TokenTransition.OP;
+                    } else {
+                        currLabel+=String.valueOf(c);
+                        currTokenType=TokenTransition.TEXTFIELD;
+                    }
+                }
+            }
+            if (currLabel.length()>0 && currTokenType==TokenTransition.TEXTFIELD) {
+                tokens.add(new LexicalToken(currLabel, TokenTransition.SCONSTANT, queryString.length()-1));
+            }
+            return tokens;
+        }
+    }
+}
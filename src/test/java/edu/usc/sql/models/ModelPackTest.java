@@ -0,0 +1,63 @@
+package edu.usc.sql.models;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.usc.sql.amnesia.lexer.GenericLexer;
+
+/**
+ * Replaces a pack with one that reuses some of its encoded models, as the
+ * incremental analysis does.
+ */
+public class ModelPackTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final GenericLexer lexer = new GenericLexer();
+
+	@Test
+	public void replaceOpenPack() throws Exception {
+		File file = new File(folder.getRoot(), "models.pack");
+		ModelPack.Writer writer = new ModelPack.Writer();
+		for (int s=1; s<=4; s++) {
+			writer.add("app:C:" + s, new HotspotModel(Workload.model(3, s)));
+		}
+		writer.write(file);
+
+		ModelPack previous = ModelPack.read(file);
+		assertEquals(4, previous.size());
+
+		//reuse two models as they are encoded, build the others again
+		ModelPack.Writer next = new ModelPack.Writer();
+		next.addEncoded("app:C:1", previous.getEncoded("app:C:1"));
+		next.addEncoded("app:C:2", previous.getEncoded("app:C:2"));
+		next.add("app:C:5", new HotspotModel(Workload.model(1, 5)));
+		next.write(file);
+
+		ModelPack pack = ModelPack.open(file);
+		assertEquals(3, pack.size());
+		assertArrayEquals(previous.getEncoded("app:C:1"), pack.getEncoded("app:C:1"));
+		assertArrayEquals(previous.getEncoded("app:C:2"), pack.getEncoded("app:C:2"));
+		assertNull(pack.getEncoded("app:C:3"));
+		assertTrue(previous.get("app:C:4").getNumberOfStates() > 0);
+
+		Random random = new Random(1);
+		for (int i=0; i<50; i++) {
+			String q = Workload.query(3, 4, random.nextInt(2), i%2 == 1, random);
+			boolean expected = new HotspotModel(Workload.model(3, 2)).accepts(lexer.lexQuery(q));
+			assertEquals(q, expected, pack.get("app:C:2").accepts(lexer.lexQuery(q)));
+		}
+		String[] files = folder.getRoot().list();
+		assertEquals(1, files.length);
+	}
+}
@@ -0,0 +1,65 @@
+package edu.usc.sql.models;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import dk.brics.automaton.Automaton;
+import dk.brics.automaton.State;
+import dk.brics.automaton.Transition;
+import edu.usc.sql.amnesia.lexer.GenericLexer;
+
+/**
+ * Checks that the token DFA is not built when its transition table would
+ * be too large, and that the model then matches with its NFA.
+ */
+public class TokenAutomatonTest {
+
+	private final GenericLexer lexer = new GenericLexer();
+
+	//SELECT c FROM t WHERE x=ai AND y=bi, 2 distinct labels per branch
+	private static String query(int branch) {
+		return "SELECT c FROM t WHERE x=a" + branch + " AND y=b" + branch;
+	}
+
+	//one chain of states per branch, union() would copy the automaton every time
+	private static HotspotModel model(int branches) {
+		State initial = new State();
+		for (int i=0; i<branches; i++) {
+			String q = query(i);
+			State s = initial;
+			for (int j=0; j<q.length(); j++) {
+				State next = new State();
+				s.addTransition(new Transition(q.charAt(j), next));
+				s = next;
+			}
+			s.setAccept(true);
+		}
+		Automaton a = new Automaton();
+		a.setInitialState(initial);
+		a.setDeterministic(false);
+		return new HotspotModel(a);
+	}
+
+	@Test
+	public void cellLimit() {
+		HotspotModel model = model(50);
+		assertNotNull(TokenAutomaton.compile(model));
+		assertNull(TokenAutomaton.compile(model, TokenAutomaton.DEFAULT_STATE_LIMIT, 1000));
+	}
+
+	@Test
+	public void manyLabels() throws Exception {
+		HotspotModel model = model(1500);
+		assertNull(model.getTokenAutomaton());
+		assertNotNull(model.getTokenNFA());
+		for (int i=0; i<1500; i+=7) {
+			assertTrue(model.accepts(lexer.lexQuery(query(i))));
+			assertFalse(model.accepts(lexer.lexQuery(query(i) + " OR 1=1")));
+			assertFalse(model.accepts(lexer.lexQuery("SELECT c FROM t WHERE x=a" + i + " AND y=b" + (i+1))));
+		}
+	}
+}
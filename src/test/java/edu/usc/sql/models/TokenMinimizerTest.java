@@ -0,0 +1,114 @@
+package edu.usc.sql.models;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import dk.brics.automaton.Automaton;
+import edu.usc.sql.amnesia.lexer.GenericLexer;
+import edu.usc.sql.amnesia.lexer.LexedQuery;
+
+/**
+ * Checks that minimize() does not change which queries a model accepts, on
+ * the synthetic hotspots of Workload with legitimate queries, injections
+ * and mutated queries.
+ */
+public class TokenMinimizerTest {
+
+	private final GenericLexer lexer = new GenericLexer();
+
+	@Test
+	public void workloadModels() throws Exception {
+		int[] literals = {0, 1, 3, 8};
+		int[] shapes = {1, 4, 16};
+		for (int l:literals) {
+			for (int s:shapes) {
+				Random random = new Random(l*31+s);
+				List<String> queries = new ArrayList<String>();
+				for (int i=0; i<200; i++) {
+					queries.add(Workload.query(l, 1+random.nextInt(8), random.nextInt(s+1), i%2 == 1, random));
+				}
+				check("model(" + l + ", " + s + ")", Workload.model(l, s), queries, random);
+			}
+		}
+	}
+
+	@Test
+	public void ambiguousModels() throws Exception {
+		for (int n=0; n<=6; n++) {
+			Random random = new Random(n);
+			List<String> queries = new ArrayList<String>();
+			for (int i=0; i<200; i++) {
+				queries.add(Workload.ambiguousQuery(random.nextInt(n+2), i%2 == 1, random));
+			}
+			check("ambiguous(" + n + ")", Workload.ambiguous(n), queries, random);
+		}
+	}
+
+	private void check(String name, Automaton a, List<String> queries, Random random) throws Exception {
+		Automaton reduced = (Automaton)a.clone();
+		reduced.reduce();
+		HotspotModel original = new HotspotModel((Automaton)reduced.clone());
+		HotspotModel minimized = new HotspotModel((Automaton)reduced.clone());
+		int states = minimized.getNumberOfStates();
+		assertTrue(name, minimized.minimize());
+		assertTrue(name, minimized.getNumberOfStates() <= states);
+
+		List<String> all = new ArrayList<String>(queries);
+		for (String q:queries) {
+			all.add(mutate(q, random));
+		}
+		int accepted = 0, rejected = 0;
+		LexedQuery tokens = new LexedQuery();
+		for (String q:all) {
+			boolean expected = original.accepts(lexer.lexQuery(q));
+			lexer.lexQuery(q, tokens);
+			assertEquals(name + ": " + q, expected, minimized.accepts(lexer.lexQuery(q)));
+			assertEquals(name + ": " + q, expected, minimized.accepts(tokens));
+			assertEquals(name + ": " + q, expected, minimized.matches(q, lexer));
+			if (expected) {
+				accepted++;
+			} else {
+				rejected++;
+			}
+		}
+		assertTrue(name, accepted > 0);
+		assertTrue(name, rejected > 0);
+	}
+
+	//drops, duplicates or replaces a random character, or cuts the query short
+	private static String mutate(String q, Random random) {
+		if (q.length() == 0) {
+			return "'";
+		}
+		int i = random.nextInt(q.length());
+		switch (random.nextInt(4)) {
+		case 0:
+			return q.substring(0, i) + q.substring(i+1);
+		case 1:
+			return q.substring(0, i) + q.charAt(i) + q.substring(i);
+		case 2:
+			return q.substring(0, i) + " '=" + q.substring(i+1);
+		default:
+			return q.substring(0, i);
+		}
+	}
+
+	@Test
+	public void legitimateQueriesStayAccepted() throws Exception {
+		Random random = new Random(7);
+		HotspotModel model = new HotspotModel(Workload.model(3, 4));
+		assertTrue(model.minimize());
+		for (int i=0; i<100; i++) {
+			String q = Workload.query(3, 5, random.nextInt(4), false, random);
+			assertTrue(q, model.accepts(lexer.lexQuery(q)));
+			assertFalse(q, model.accepts(lexer.lexQuery(Workload.query(3, 5, random.nextInt(4), true, random))));
+		}
+	}
+}
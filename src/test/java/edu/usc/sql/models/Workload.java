@@ -0,0 +1,132 @@
+package edu.usc.sql.models;
+
+import java.util.Random;
+
+import dk.brics.automaton.Automaton;
+
+/**
+ * Synthetic hotspots and queries. A hotspot is a union of query shapes
+ *
+ *   SELECT c0, ..., cn FROM tk WHERE c0='v' AND c1=v AND c2='v' ...
+ *
+ * where k ranges over the shapes, string and numeric literals alternate and
+ * every literal is a VAR. The number of shapes controls the size of the
+ * model, the number and length of the literals the length of the queries.
+ *
+ * Shared by the tests and, through the test JAR, by the benchmarks module.
+ */
+public class Workload {
+
+	public static final String[] ATTACKS = {
+		"' OR '1'='1",
+		"' UNION SELECT password FROM users --",
+		"'; DROP TABLE users; --",
+		"x' AND 1=(SELECT COUNT(*) FROM users) AND 'a'='a",
+	};
+
+	private static Automaton string(String s) {
+		return Automaton.makeString(s);
+	}
+
+	private static Automaton var() {
+		return Automaton.makeCharRange('a', 'z').union(Automaton.makeCharRange('0', '9')).repeat(1);
+	}
+
+	public static Automaton model(int literals, int shapes) {
+		Automaton model = null;
+		for (int k=0; k<shapes; k++) {
+			Automaton shape = string(select(literals, k));
+			for (int i=0; i<literals; i++) {
+				shape = shape.concatenate(string((i == 0 ? "" : " AND ") + "c" + i + "=" + (isString(i) ? "'" : "")));
+				shape = shape.concatenate(var());
+				if (isString(i)) {
+					shape = shape.concatenate(string("'"));
+				}
+			}
+			model = model == null ? shape : model.union(shape);
+		}
+		return model;
+	}
+
+	/**
+	 * Returns a deliberately ambiguous hotspot
+	 *
+	 *   SELECT c FROM t WHERE c=v AND c=v ... AND c=v
+	 *
+	 * where every condition after the first can be read by either of two
+	 * copies of the same branch, so that a query with n conditions matches
+	 * 2^n paths of the model. The token DFA stays small, the NFA and the
+	 * diagnostic analysis see every branch. The conditions are unrolled
+	 * rather than repeated, HotspotModel does not keep loops around VARs.
+	 */
+	public static Automaton ambiguous(int conditions) {
+		Automaton model = string("SELECT c FROM t WHERE c=").concatenate(var());
+		for (int i=0; i<conditions; i++) {
+			//two equal automata, union() would merge the same one with itself
+			Automaton condition = string(" AND c=").concatenate(var());
+			Automaton copy = string(" AND c=").concatenate(var());
+			model = model.concatenate(condition.union(copy));
+		}
+		return model;
+	}
+
+	/**
+	 * Returns a query for the ambiguous hotspot with the given number of
+	 * conditions. If attack is true a tautology is appended, which the
+	 * model only rejects once every condition has been read.
+	 */
+	public static String ambiguousQuery(int conditions, boolean attack, Random random) {
+		StringBuilder query = new StringBuilder("SELECT c FROM t WHERE c=").append(random.nextInt(1000));
+		for (int i=0; i<conditions; i++) {
+			query.append(" AND c=").append(random.nextInt(1000));
+		}
+		if (attack) {
+			query.append(" OR 1=1");
+		}
+		return query.toString();
+	}
+
+	/**
+	 * Returns a query of the given shape. If attack is true, the first
+	 * string literal is replaced by an injection.
+	 */
+	public static String query(int literals, int literalLength, int shape, boolean attack, Random random) {
+		StringBuilder query = new StringBuilder(select(literals, shape));
+		for (int i=0; i<literals; i++) {
+			query.append(i == 0 ? "" : " AND ").append('c').append(i).append('=');
+			if (isString(i)) {
+				query.append('\'');
+				if (attack && i == 0) {
+					query.append(value(literalLength, random)).append(ATTACKS[random.nextInt(ATTACKS.length)]);
+				} else {
+					query.append(value(literalLength, random));
+				}
+				query.append('\'');
+			} else {
+				query.append(random.nextInt(1000000));
+			}
+		}
+		return query.toString();
+	}
+
+	private static String select(int literals, int shape) {
+		StringBuilder select = new StringBuilder("SELECT ");
+		for (int i=0; i<Math.max(literals, 1); i++) {
+			select.append(i == 0 ? "" : ", ").append('c').append(i);
+		}
+		return select.append(" FROM t").append(shape).append(literals > 0 ? " WHERE " : "").toString();
+	}
+
+	private static boolean isString(int literal) {
+		return literal%2 == 0;
+	}
+
+	private static String value(int length, Random random) {
+		char[] value = new char[length];
+		for (int i=0; i<length; i++) {
+			int c = random.nextInt(36);
+			value[i] = (char)(c < 26 ? 'a'+c : '0'+c-26);
+		}
+		return new String(value);
+	}
+}